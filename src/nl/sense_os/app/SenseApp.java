@@ -6,6 +6,8 @@
 
 package nl.sense_os.app;
 
+import nl.sense_os.app.diagnostics.Diagnostics;
+import nl.sense_os.app.diagnostics.DiagnosticsActivity;
 import nl.sense_os.app.dialogs.FaqDialog;
 import nl.sense_os.app.dialogs.LogoutConfirmDialog;
 import nl.sense_os.app.dialogs.LogoutConfirmDialog.LogoutActivity;
@@ -13,21 +15,14 @@ import nl.sense_os.app.dialogs.WelcomeDialog;
 import nl.sense_os.app.dialogs.WelcomeDialog.WelcomeActivity;
 import nl.sense_os.app.login.LoginActivity;
 import nl.sense_os.app.register.RegisterActivity;
+import nl.sense_os.app.sampling.SamplingPolicy;
+import nl.sense_os.app.sampling.SamplingPolicy.Module;
 import nl.sense_os.service.ISenseService;
-import nl.sense_os.service.ISenseServiceCallback;
-import nl.sense_os.service.SenseService;
 import nl.sense_os.service.constants.SensePrefs;
 import nl.sense_os.service.constants.SensePrefs.Auth;
-import nl.sense_os.service.constants.SensePrefs.Status;
-import nl.sense_os.service.constants.SenseStatusCodes;
-import android.content.BroadcastReceiver;
-import android.content.ComponentName;
-import android.content.Context;
+import nl.sense_os.service.constants.SensePrefs.Main.Advanced;
 import android.content.Intent;
-import android.content.IntentFilter;
-import android.content.ServiceConnection;
 import android.os.Bundle;
-import android.os.IBinder;
 import android.os.RemoteException;
 import android.support.v4.app.FragmentActivity;
 import android.text.format.DateFormat;
@@ -37,53 +32,23 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.CheckBox;
-import android.widget.TextView;
 import android.widget.Toast;
 
-public class SenseApp extends FragmentActivity implements WelcomeActivity, LogoutActivity {
+public class SenseApp extends FragmentActivity implements WelcomeActivity, LogoutActivity,
+		StatusMonitor.Listener {
 
 	/**
-	 * Service stub for callbacks from the Sense service.
+	 * Listener for the connection with the Sense service. Manages the <code>service</code> field
+	 * when the service is connected or disconnected.
 	 */
-	private class SenseCallback extends ISenseServiceCallback.Stub {
+	private class SenseServiceConn implements SenseServiceHolder.ConnectionListener {
 
 		@Override
-		public void onChangeLoginResult(int result) throws RemoteException {
-			// not used
-		}
-
-		@Override
-		public void onRegisterResult(int result) throws RemoteException {
-			// not used
-		}
-
-		@Override
-		public void statusReport(final int status) {
-			// Log.v(TAG, "Received status report from Sense Platform service...");
-
-			runOnUiThread(new Runnable() {
-
-				@Override
-				public void run() {
-					updateUi(status);
-				}
-			});
-		}
-	}
-
-	/**
-	 * Service connection to handle connection with the Sense service. Manages the
-	 * <code>service</code> field when the service is connected or disconnected.
-	 */
-	private class SenseServiceConn implements ServiceConnection {
-
-		@Override
-		public void onServiceConnected(ComponentName className, IBinder binder) {
+		public void onServiceConnected(ISenseService binder) {
 			// Log.v(TAG, "Bound to Sense Platform service...");
 
-			service = ISenseService.Stub.asInterface(binder);
+			service = binder;
 			try {
-				service.getStatus(callback);
 				long lastLogin = service.getPrefLong(SensePrefs.Main.LAST_LOGGED_IN, -1);
 				if (lastLogin == -1) {
 					// sense has never been logged in
@@ -98,41 +63,19 @@ public class SenseApp extends FragmentActivity implements WelcomeActivity, Logou
 		}
 
 		@Override
-		public void onServiceDisconnected(ComponentName className) {
+		public void onServiceDisconnected() {
 			// Log.v(TAG, "Sense Platform service disconnected...");
-
-			/* this is not called when the service is stopped, only when it is suddenly killed! */
 			service = null;
-			isServiceBound = false;
-			checkServiceStatus();
-		}
-	}
-
-	/**
-	 * Receiver for broadcast events from the Sense Service, e.g. when the status of the service
-	 * changes.
-	 */
-	private class SenseServiceListener extends BroadcastReceiver {
-
-		@Override
-		public void onReceive(Context context, Intent intent) {
-			runOnUiThread(new Runnable() {
-
-				@Override
-				public void run() {
-					checkServiceStatus();
-				}
-			});
 		}
 	}
 
 	private static final String TAG = "SenseApp";
 
-	private final ISenseServiceCallback callback = new SenseCallback();
 	private boolean isServiceBound;
 	private ISenseService service;
-	private final ServiceConnection serviceConn = new SenseServiceConn();
-	private final SenseServiceListener serviceListener = new SenseServiceListener();
+	private final SenseServiceConn serviceConn = new SenseServiceConn();
+	private final StatusMonitor statusMonitor = StatusMonitor.getInstance();
+	private StatusViewModel statusView;
 
 	/**
 	 * Binds to the Sense Service, creating it if necessary.
@@ -142,39 +85,30 @@ public class SenseApp extends FragmentActivity implements WelcomeActivity, Logou
 		// start the service if it was not running already
 		if (!isServiceBound) {
 			// Log.v(TAG, "Try to bind to Sense Platform service");
-			final Intent serviceIntent = new Intent(getString(R.string.action_sense_service));
-			isServiceBound = bindService(serviceIntent, serviceConn, BIND_AUTO_CREATE);
+			SenseServiceHolder holder = SenseServiceHolder.getInstance(this);
+			holder.acquire(true);
+			holder.addListener(serviceConn);
+			isServiceBound = true;
 		} else {
 			// already bound
 		}
 	}
 
 	/**
-	 * Calls {@link ISenseService#getStatus(ISenseServiceCallback)} on the service. This will
-	 * generate a callback that updates the buttons ToggleButtons showing the service's state.
+	 * Requests a status report from the service via the {@link StatusMonitor}. This will generate a
+	 * callback that updates the buttons ToggleButtons showing the service's state.
 	 */
 	private void checkServiceStatus() {
 		// Log.v(TAG, "Checking service status..");
+		statusMonitor.requestStatus();
+	}
 
-		if (null != service) {
-			try {
-				// request status report
-				service.getStatus(callback);
-			} catch (final RemoteException e) {
-				Log.e(TAG, "Error checking service status. ", e);
-			}
-		} else {
-			// Log.v(TAG, "Not bound to Sense Platform service! Assume it's not running...");
-
-			// invoke callback method directly to update UI anyway.
-			// runOnUiThread(new Runnable() {
-			//
-			// @Override
-			// public void run() {
-			// updateUi(0);
-			// }
-			// });
-		}
+	/**
+	 * @return The current sample rate preference of the Sense service
+	 * @throws RemoteException
+	 */
+	private int getSampleRate() throws RemoteException {
+		return SamplingPolicy.parseRate(service.getPrefString(SensePrefs.Main.SAMPLE_RATE, "0"));
 	}
 
 	@Override
@@ -182,10 +116,10 @@ public class SenseApp extends FragmentActivity implements WelcomeActivity, Logou
 		try {
 			service.logout();
 			service.toggleMain(false);
-			service.getStatus(callback);
 		} catch (RemoteException e) {
 			Log.e(TAG, "failed to log out: " + e);
 		}
+		checkServiceStatus();
 	}
 
 	/**
@@ -254,7 +188,9 @@ public class SenseApp extends FragmentActivity implements WelcomeActivity, Logou
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
+		Diagnostics.startupBegin();
 		setContentView(R.layout.main);
+		statusView = new StatusViewModel(this);
 	}
 
 	@Override
@@ -292,6 +228,9 @@ public class SenseApp extends FragmentActivity implements WelcomeActivity, Logou
 		case R.id.menu_register:
 			startRegister();
 			break;
+		case R.id.menu_diagnostics:
+			startActivity(new Intent(this, DiagnosticsActivity.class));
+			break;
 		default:
 			Log.w(TAG, "Unexpected option item selected: " + item);
 			return false;
@@ -321,17 +260,20 @@ public class SenseApp extends FragmentActivity implements WelcomeActivity, Logou
 	public boolean onPrepareOptionsMenu(Menu menu) {
 
 		boolean loggedIn = false;
+		boolean devMode = false;
 		if (null != service) {
 			try {
 				loggedIn = service.getPrefString(Auth.LOGIN_USERNAME, null) != null;
+				devMode = service.getPrefBool(Advanced.DEV_MODE, false);
 			} catch (RemoteException e) {
-				Log.e(TAG, "Failed to get USERNAME preference from service: " + e);
+				Log.e(TAG, "Failed to get preferences from service: " + e);
 			}
 		}
 
 		menu.findItem(R.id.menu_login).setVisible(!loggedIn);
 		menu.findItem(R.id.menu_logout).setVisible(loggedIn);
 		menu.findItem(R.id.menu_register).setVisible(!loggedIn);
+		menu.findItem(R.id.menu_diagnostics).setVisible(devMode);
 
 		return true;
 	}
@@ -344,9 +286,8 @@ public class SenseApp extends FragmentActivity implements WelcomeActivity, Logou
 		// bind to service as soon as possible
 		bindToSenseService();
 
-		// register receiver for updates
-		IntentFilter filter = new IntentFilter(SenseService.ACTION_SERVICE_BROADCAST);
-		registerReceiver(serviceListener, filter);
+		// register for status updates
+		statusMonitor.register(this, this);
 
 		checkServiceStatus();
 	}
@@ -356,11 +297,8 @@ public class SenseApp extends FragmentActivity implements WelcomeActivity, Logou
 		// Log.v(TAG, "onStop");
 
 		// unregister service state listener
-		try {
-			unregisterReceiver(serviceListener);
-		} catch (IllegalArgumentException e) {
-			// listener was not registered
-		}
+		statusMonitor.unregister(this);
+		statusView.cancel();
 
 		super.onStop();
 	}
@@ -411,29 +349,13 @@ public class SenseApp extends FragmentActivity implements WelcomeActivity, Logou
 				// show informational toast
 				if (active) {
 
-					final int rate = Integer.parseInt(service.getPrefString(
-							SensePrefs.Main.SAMPLE_RATE, "0"));
-					String intervalString = "";
+					final int rate = getSampleRate();
+					final long interval = SamplingPolicy.getInterval(Module.AMBIENCE, rate);
+					String intervalString = interval == 0 ? "the whole time" : "every "
+							+ SamplingPolicy.format(interval);
 					String extraString = "";
-					switch (rate) {
-					case -2:
-						intervalString = "the whole time";
+					if (rate == SamplingPolicy.RATE_REAL_TIME) {
 						extraString = " A sound stream will be uploaded.";
-						break;
-					case -1:
-						// often
-						intervalString = "every 10 seconds";
-						break;
-					case 0:
-						// normal
-						intervalString = "every minute";
-						break;
-					case 1:
-						// rarely (1 hour)
-						intervalString = "every 15 minutes";
-						break;
-					default:
-						Log.e(TAG, "Unexpected commonsense rate preference.");
 					}
 					String msg = getString(R.string.toast_toggle_ambience).replace("?",
 							intervalString)
@@ -462,25 +384,8 @@ public class SenseApp extends FragmentActivity implements WelcomeActivity, Logou
 				// show informational Toast
 				if (active) {
 
-					final int rate = Integer.parseInt(service.getPrefString(
-							SensePrefs.Main.SAMPLE_RATE, "0"));
-					String interval = "";
-					switch (rate) {
-					case -2: // real-time
-						interval = "second";
-						break;
-					case -1: // often
-						interval = "minute";
-						break;
-					case 0: // normal
-						interval = "5 minutes";
-						break;
-					case 1: // rarely (15 hour)
-						interval = "15 minutes";
-						break;
-					default:
-						Log.e(TAG, "Unexpected device prox preference.");
-					}
+					final String interval = SamplingPolicy.format(SamplingPolicy.getInterval(
+							Module.DEVICE_PROX, getSampleRate()));
 					final String msg = getString(R.string.toast_toggle_dev_prox);
 					showToast(msg.replace("?", interval), Toast.LENGTH_LONG);
 				}
@@ -507,26 +412,8 @@ public class SenseApp extends FragmentActivity implements WelcomeActivity, Logou
 				// show informational toast
 				if (active) {
 
-					final int rate = Integer.parseInt(service.getPrefString(
-							SensePrefs.Main.SAMPLE_RATE, "0"));
-					String interval = "";
-					switch (rate) {
-					case -2: // often
-						interval = "second";
-						break;
-					case -1: // often
-						interval = "5 seconds";
-						break;
-					case 0: // normal
-						interval = "minute";
-						break;
-					case 1: // rarely
-						interval = "15 minutes";
-						break;
-					default:
-						Log.e(TAG, "Unexpected commonsense rate: " + rate);
-						break;
-					}
+					final String interval = SamplingPolicy.format(SamplingPolicy.getInterval(
+							Module.EXTERNAL, getSampleRate()));
 					final String msg = getString(R.string.toast_toggle_external_sensors).replace(
 							"?", interval);
 					showToast(msg, Toast.LENGTH_LONG);
@@ -554,26 +441,8 @@ public class SenseApp extends FragmentActivity implements WelcomeActivity, Logou
 				// show informational toast
 				if (active) {
 
-					final int rate = Integer.parseInt(service.getPrefString(
-							SensePrefs.Main.SAMPLE_RATE, "0"));
-					String interval = "";
-					switch (rate) {
-					case -2: // often
-						interval = "second";
-						break;
-					case -1: // often
-						interval = "30 seconds";
-						break;
-					case 0: // normal
-						interval = "5 minutes";
-						break;
-					case 1: // rarely
-						interval = "15 minutes";
-						break;
-					default:
-						Log.e(TAG, "Unexpected commonsense rate: " + rate);
-						break;
-					}
+					final String interval = SamplingPolicy.format(SamplingPolicy.getInterval(
+							Module.LOCATION, getSampleRate()));
 					final String msg = getString(R.string.toast_toggle_location).replace("?",
 							interval);
 					showToast(msg, Toast.LENGTH_LONG);
@@ -628,26 +497,8 @@ public class SenseApp extends FragmentActivity implements WelcomeActivity, Logou
 				// show informational toast
 				if (active) {
 
-					final int rate = Integer.parseInt(service.getPrefString(
-							SensePrefs.Main.SAMPLE_RATE, "0"));
-					String interval = "";
-					switch (rate) {
-					case -2: // often
-						interval = "second";
-						break;
-					case -1: // often
-						interval = "5 seconds";
-						break;
-					case 0: // normal
-						interval = "minute";
-						break;
-					case 1: // rarely
-						interval = "15 minutes";
-						break;
-					default:
-						Log.e(TAG, "Unexpected commonsense rate: " + rate);
-						break;
-					}
+					final String interval = SamplingPolicy.format(SamplingPolicy.getInterval(
+							Module.MOTION, getSampleRate()));
 					final String msg = getString(R.string.toast_toggle_motion).replace("?",
 							interval);
 					showToast(msg, Toast.LENGTH_LONG);
@@ -690,133 +541,25 @@ public class SenseApp extends FragmentActivity implements WelcomeActivity, Logou
 		checkServiceStatus();
 	}
 
+	@Override
+	public void onStatusChanged(int status, int changed, long seq) {
+		statusView.setStatus(status);
+	}
+
 	/**
 	 * Unbinds from the Sense service, resets {@link #service} and {@link #isServiceBound}.
 	 */
 	private void unbindFromSenseService() {
 
-		if (true == isServiceBound && null != serviceConn) {
+		if (true == isServiceBound) {
 			// Log.v(TAG, "Unbind from Sense Platform service");
-			unbindService(serviceConn);
+			SenseServiceHolder holder = SenseServiceHolder.getInstance(this);
+			holder.removeListener(serviceConn);
+			holder.release();
 		} else {
 			// already unbound
 		}
 		service = null;
 		isServiceBound = false;
 	}
-
-	/**
-	 * Enables the checkboxes to show the status of the Sense Platform service.
-	 * 
-	 * @param status
-	 *            The status of the service.
-	 * @see {@link Status#STATUSCODE_RUNNING}
-	 */
-	private void updateUi(int status) {
-
-		final boolean running = (status & SenseStatusCodes.RUNNING) > 0;
-		// Log.v(TAG, "'running' status: " + running);
-		((CheckBox) findViewById(R.id.main_cb)).setChecked(running);
-
-		final boolean connected = (status & SenseStatusCodes.CONNECTED) > 0;
-		// Log.v(TAG, "'connected' status: " + connected);
-
-		// show connection status in main service field
-		TextView mainFirstLine = (TextView) findViewById(R.id.main_firstline);
-		if (connected) {
-			mainFirstLine.setText("Sense service");
-		} else {
-			mainFirstLine.setText("Sense service (not logged in)");
-		}
-
-		// change description of main service field
-		CheckBox mainButton = (CheckBox) findViewById(R.id.main_cb);
-		mainButton.setChecked(running);
-		TextView mainDescription = (TextView) findViewById(R.id.main_secondLine);
-		if (running) {
-			mainDescription.setText("Press to disable sensing");
-		} else {
-			mainDescription.setText("Press to enable sensing");
-		}
-
-		// enable phone state list row
-		CheckBox button = (CheckBox) findViewById(R.id.phonestate_cb);
-		final boolean callstate = (status & SenseStatusCodes.PHONESTATE) > 0;
-		button.setChecked(callstate);
-		button.setEnabled(running);
-		View text1 = findViewById(R.id.phonestate_firstline);
-		View text2 = findViewById(R.id.phonestate_secondLine);
-		text1.setEnabled(running);
-		text2.setEnabled(running);
-		if (callstate) {
-			// Log.v(TAG, "'phone state' enabled");
-		}
-
-		// enable location list row
-		button = (CheckBox) findViewById(R.id.location_cb);
-		final boolean location = (status & SenseStatusCodes.LOCATION) > 0;
-		button.setChecked(location);
-		button.setEnabled(running);
-		button = (CheckBox) findViewById(R.id.ambience_cb);
-		text1 = findViewById(R.id.location_firstline);
-		text2 = findViewById(R.id.location_secondLine);
-		text1.setEnabled(running);
-		text2.setEnabled(running);
-		if (location) {
-			// Log.v(TAG, "'location' enabled");
-		}
-
-		// enable motion list row
-		button = (CheckBox) findViewById(R.id.motion_cb);
-		final boolean motion = (status & SenseStatusCodes.MOTION) > 0;
-		button.setChecked(motion);
-		button.setEnabled(running);
-		text1 = findViewById(R.id.motion_firstline);
-		text2 = findViewById(R.id.motion_secondLine);
-		text1.setEnabled(running);
-		text2.setEnabled(running);
-		if (motion) {
-			// Log.v(TAG, "'motion' enabled");
-		}
-
-		// enable ambience list row
-		button = (CheckBox) findViewById(R.id.ambience_cb);
-		final boolean ambience = (status & SenseStatusCodes.AMBIENCE) > 0;
-		button.setChecked(ambience);
-		button.setEnabled(running);
-		button = (CheckBox) findViewById(R.id.ambience_cb);
-		text1 = findViewById(R.id.ambience_firstline);
-		text2 = findViewById(R.id.ambience_secondLine);
-		text1.setEnabled(running);
-		text2.setEnabled(running);
-		if (ambience) {
-			// Log.v(TAG, "'ambience' enabled");
-		}
-
-		// enable device proximity row
-		button = (CheckBox) findViewById(R.id.device_prox_cb);
-		final boolean deviceProx = (status & SenseStatusCodes.DEVICE_PROX) > 0;
-		button.setChecked(deviceProx);
-		button.setEnabled(running);
-		text1 = findViewById(R.id.device_prox_firstline);
-		text2 = findViewById(R.id.device_prox_secondLine);
-		text1.setEnabled(running);
-		text2.setEnabled(running);
-		if (deviceProx) {
-			// Log.v(TAG, "'neighboring devices' enabled");
-		}
-
-		// enable external sensor list row
-		button = (CheckBox) findViewById(R.id.external_sensor_cb);
-		final boolean external_sensors = (status & SenseStatusCodes.EXTERNAL) > 0;
-		button.setChecked(external_sensors);
-		button.setEnabled(running);
-		text1 = findViewById(R.id.external_sensor_firstline);
-		text2 = findViewById(R.id.external_sensor_secondLine);
-		text1.setEnabled(running);
-		text2.setEnabled(running);
-		if (external_sensors) {
-			// Log.v(TAG, "'external sensors' enabled");
-		}
-	}
 }
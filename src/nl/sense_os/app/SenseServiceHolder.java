@@ -0,0 +1,257 @@
+/*
+ * *************************************************************************************************
+ * Copyright (C) 2010 Sense Observation Systems, Rotterdam, the Netherlands. All rights reserved.
+ * *************************************************************************************************
+ */
+
+package nl.sense_os.app;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.sense_os.app.diagnostics.Diagnostics;
+import nl.sense_os.service.ISenseService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Process-wide, reference-counted connection to the Sense service. Components acquire the
+ * connection when they need the service and release it when they are done. The service is only
+ * unbound some time after the last reference was released, so moving between the screens of the
+ * app does not cause an unbind/rebind cycle.<br/>
+ * <br/>
+ * All methods must be called from the main thread. Listeners are also called on the main thread.
+ */
+public class SenseServiceHolder {
+
+	/**
+	 * Listener for the connection state of the Sense service.
+	 */
+	public interface ConnectionListener {
+
+		/**
+		 * @param service
+		 *            The bound Sense service
+		 */
+		void onServiceConnected(ISenseService service);
+
+		/**
+		 * Called when the service was unbound, or when the service process was suddenly killed.
+		 */
+		void onServiceDisconnected();
+	}
+
+	/**
+	 * Service connection to handle connection with the Sense service. Manages the
+	 * <code>service</code> field when the service is connected or disconnected.
+	 */
+	private class SenseServiceConn implements ServiceConnection {
+
+		@Override
+		public void onServiceConnected(ComponentName className, IBinder binder) {
+			service = Diagnostics.instrument(ISenseService.Stub.asInterface(binder));
+
+			if (bindStart > 0) {
+				lastBindTime = SystemClock.elapsedRealtime() - bindStart;
+				totalBindTime += lastBindTime;
+				bindStart = 0;
+				Diagnostics.record("bind", lastBindTime * 1000000);
+				Log.d(TAG, "Bound to Sense service in " + lastBindTime + " ms");
+			}
+
+			for (ConnectionListener listener : new ArrayList<ConnectionListener>(listeners)) {
+				listener.onServiceConnected(service);
+			}
+		}
+
+		@Override
+		public void onServiceDisconnected(ComponentName className) {
+			/* this is not called when the service is stopped, only when it is suddenly killed! */
+			service = null;
+			notifyDisconnected();
+		}
+	}
+
+	/**
+	 * Time to keep the service bound after the last reference is released, in ms.
+	 */
+	private static final long LINGER_TIME = 5000;
+	private static final String TAG = "SenseServiceHolder";
+	private static SenseServiceHolder instance;
+
+	/**
+	 * @param context
+	 *            Context of any component of the app
+	 * @return The service holder for this process
+	 */
+	public static SenseServiceHolder getInstance(Context context) {
+		if (null == instance) {
+			instance = new SenseServiceHolder(context.getApplicationContext());
+		}
+		return instance;
+	}
+
+	private int avoidedBinds;
+	private int binds;
+	private long bindStart;
+	private boolean boundAutoCreate;
+	private final Context context;
+	private final Handler handler = new Handler(Looper.getMainLooper());
+	private boolean isBound;
+	private long lastBindTime;
+	private final List<ConnectionListener> listeners = new ArrayList<ConnectionListener>();
+	private int refCount;
+	private ISenseService service;
+	private final ServiceConnection serviceConn = new SenseServiceConn();
+	private long totalBindTime;
+	private final Runnable unbindTask = new Runnable() {
+
+		@Override
+		public void run() {
+			unbind();
+		}
+	};
+
+	private SenseServiceHolder(Context context) {
+		this.context = context;
+	}
+
+	/**
+	 * Acquires a reference to the connection, and binds to the service if necessary.
+	 *
+	 * @param autoCreate
+	 *            <code>true</code> if the service should be created when it is not running yet
+	 */
+	public void acquire(boolean autoCreate) {
+		refCount++;
+		handler.removeCallbacks(unbindTask);
+
+		if (isBound && (boundAutoCreate || !autoCreate)) {
+			// already bound
+			avoidedBinds++;
+			return;
+		}
+
+		// bind, or bind again to add the auto create flag to the existing binding
+		final Intent serviceIntent = new Intent(context.getString(R.string.action_sense_service));
+		if (null == service) {
+			// (re)start the bind timer: an earlier bind without auto create may have been waiting
+			// for a service that was not running
+			bindStart = SystemClock.elapsedRealtime();
+		}
+		if (context.bindService(serviceIntent, serviceConn, autoCreate ? Context.BIND_AUTO_CREATE
+				: 0)) {
+			isBound = true;
+			boundAutoCreate |= autoCreate;
+			binds++;
+		} else {
+			Log.w(TAG, "Failed to bind to the Sense service");
+			bindStart = 0;
+		}
+	}
+
+	/**
+	 * Adds a connection listener. If the service is already connected, the listener is notified
+	 * immediately.
+	 *
+	 * @param listener
+	 *            Listener to add
+	 */
+	public void addListener(ConnectionListener listener) {
+		if (!listeners.contains(listener)) {
+			listeners.add(listener);
+		}
+		if (null != service) {
+			listener.onServiceConnected(service);
+		}
+	}
+
+	/**
+	 * @return Number of times that a component acquired the connection while it was already bound
+	 */
+	public int getAvoidedBindCount() {
+		return avoidedBinds;
+	}
+
+	/**
+	 * @return Number of calls to {@link Context#bindService(Intent, ServiceConnection, int)}
+	 */
+	public int getBindCount() {
+		return binds;
+	}
+
+	/**
+	 * @return Time between the last bind and the connection of the service, in ms
+	 */
+	public long getLastBindTime() {
+		return lastBindTime;
+	}
+
+	/**
+	 * @return The bound Sense service, or <code>null</code> if it is not connected. Calls to the
+	 *         service are timed by {@link Diagnostics}.
+	 */
+	public ISenseService getService() {
+		return service;
+	}
+
+	/**
+	 * @return Total time spent waiting for the service to connect after binding, in ms
+	 */
+	public long getTotalBindTime() {
+		return totalBindTime;
+	}
+
+	private void notifyDisconnected() {
+		for (ConnectionListener listener : new ArrayList<ConnectionListener>(listeners)) {
+			listener.onServiceDisconnected();
+		}
+	}
+
+	/**
+	 * Releases a reference to the connection. The service is unbound {@link #LINGER_TIME} ms after
+	 * the last reference is released, unless it is acquired again in the meantime.
+	 */
+	public void release() {
+		if (refCount == 0) {
+			Log.w(TAG, "Connection released more often than it was acquired");
+			return;
+		}
+		refCount--;
+		if (refCount == 0) {
+			handler.postDelayed(unbindTask, LINGER_TIME);
+		}
+	}
+
+	/**
+	 * @param listener
+	 *            Listener to remove
+	 */
+	public void removeListener(ConnectionListener listener) {
+		listeners.remove(listener);
+	}
+
+	private void unbind() {
+		if (refCount > 0 || !isBound) {
+			return;
+		}
+
+		Log.d(TAG, "Unbind from Sense service. Binds: " + binds + ", avoided: " + avoidedBinds
+				+ ", total bind time: " + totalBindTime + " ms");
+		context.unbindService(serviceConn);
+		isBound = false;
+		boundAutoCreate = false;
+		bindStart = 0;
+		if (null != service) {
+			service = null;
+			notifyDisconnected();
+		}
+	}
+}
@@ -6,38 +6,31 @@
  */
 package nl.sense_os.app;
 
+import java.util.HashSet;
+import java.util.Set;
+
+import nl.sense_os.app.SenseServiceHolder.ConnectionListener;
 import nl.sense_os.app.login.LoginActivity;
+import nl.sense_os.app.prefs.PrefRegistry;
 import nl.sense_os.app.register.RegisterActivity;
+import nl.sense_os.app.sampling.SamplingPolicy;
 import nl.sense_os.service.ISenseService;
 import nl.sense_os.service.constants.SensePrefs;
 import nl.sense_os.service.constants.SensePrefs.Auth;
 import nl.sense_os.service.constants.SensePrefs.Main.Advanced;
-import nl.sense_os.service.constants.SensePrefs.Main.Ambience;
-import nl.sense_os.service.constants.SensePrefs.Main.DevProx;
-import nl.sense_os.service.constants.SensePrefs.Main.External.MyGlucoHealth;
-import nl.sense_os.service.constants.SensePrefs.Main.External.OBD2Sensor;
-import nl.sense_os.service.constants.SensePrefs.Main.External.TanitaScale;
-import nl.sense_os.service.constants.SensePrefs.Main.External.ZephyrBioHarness;
-import nl.sense_os.service.constants.SensePrefs.Main.External.ZephyrHxM;
-import nl.sense_os.service.constants.SensePrefs.Main.Location;
-import nl.sense_os.service.constants.SensePrefs.Main.Motion;
-import nl.sense_os.service.constants.SensePrefs.Main.PhoneState;
-import nl.sense_os.service.constants.SensePrefs.Main.Quiz;
-import nl.sense_os.service.constants.SensePrefs.Status;
 import android.annotation.TargetApi;
 import android.app.AlertDialog;
 import android.app.Dialog;
-import android.content.ComponentName;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnClickListener;
 import android.content.Intent;
-import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.IBinder;
+import android.os.Handler;
 import android.os.RemoteException;
 import android.preference.Preference;
 import android.preference.Preference.OnPreferenceClickListener;
@@ -57,8 +50,8 @@ import android.view.MenuItem;
 public class SenseSettings extends PreferenceActivity {
 
 	/**
-	 * Listener for changes in the preferences. Any changes are immediately sent to the Sense
-	 * Platform service.
+	 * Listener for changes in the preferences. Changes are collected and sent to the Sense Platform
+	 * service in one batch, as soon as no new changes came in for {@link #SYNC_DELAY} ms.
 	 */
 	private class PrefSyncListener implements OnSharedPreferenceChangeListener {
 
@@ -66,59 +59,66 @@ public class SenseSettings extends PreferenceActivity {
 		public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
 			// Log.v(TAG, "Preference '" + key + "' changed...");
 
-			if (service == null) {
-				Log.e(TAG, "Could not send preference to Sense Platform service: service = null!");
-				return;
+			if (null != loadTask) {
+				// the snapshot that is being loaded must not overwrite this edit
+				editedDuringLoad.add(key);
 			}
 
-			try {
-				// send the new preference to the Sense Platform service
-				try {
-					String value = sharedPreferences.getString(key, "");
-					service.setPrefString(key, value);
-					showSummaries();
-					return;
-				} catch (ClassCastException e) {
-					// do nothing, try another preference type
-				}
-				try {
-					boolean value = sharedPreferences.getBoolean(key, false);
-					service.setPrefBool(key, value);
-					showSummaries();
-					return;
-				} catch (ClassCastException e) {
-					// do nothing, try another preference type
-				}
-				try {
-					float value = sharedPreferences.getFloat(key, 0f);
-					service.setPrefFloat(key, value);
-					showSummaries();
-					return;
-				} catch (ClassCastException e) {
-					// do nothing, try another preference type
-				}
-				try {
-					int value = sharedPreferences.getInt(key, 0);
-					service.setPrefInt(key, value);
-					showSummaries();
-					return;
-				} catch (ClassCastException e) {
-					// do nothing, try another preference type
-				}
-				try {
-					long value = sharedPreferences.getLong(key, 0l);
-					service.setPrefLong(key, value);
-					showSummaries();
-					return;
-				} catch (ClassCastException e) {
-					Log.e(TAG, "Can't read new preference setting!");
-				}
+			if (PrefRegistry.read(sharedPreferences, key, pendingChanges)) {
+				handler.removeCallbacks(syncPrefs);
+				handler.postDelayed(syncPrefs, SYNC_DELAY);
+			} else {
+				Log.w(TAG, "Cannot send preference '" + key + "' to Sense Platform service");
+			}
+		}
+	};
+
+	/**
+	 * Task that fetches a snapshot of all preferences from the Sense Platform service without
+	 * blocking the UI thread, and copies it into this activity's default preferences.
+	 */
+	private class LoadPrefsTask extends AsyncTask<ISenseService, Void, Bundle> {
 
+		@Override
+		protected Bundle doInBackground(ISenseService... params) {
+			try {
+				return PrefRegistry.snapshot(params[0]);
 			} catch (RemoteException e) {
-				Log.e(TAG, "Failed to set preference " + key + " at Sense Platform service", e);
+				Log.e(TAG, "Exception getting preferences from Sense Platform service!", e);
+				return null;
 			}
 		}
-	};
+
+		@Override
+		protected void onPostExecute(Bundle snapshot) {
+			loadTask = null;
+
+			if (null == snapshot) {
+				editedDuringLoad.clear();
+				return;
+			}
+
+			// keep edits that the user made while the snapshot was loading
+			for (String key : editedDuringLoad) {
+				snapshot.remove(key);
+			}
+			for (String key : pendingChanges.keySet()) {
+				snapshot.remove(key);
+			}
+			editedDuringLoad.clear();
+
+			// do not send the loaded values back to the service
+			final SharedPreferences prefs = PreferenceManager
+					.getDefaultSharedPreferences(SenseSettings.this);
+			prefs.unregisterOnSharedPreferenceChangeListener(changeListener);
+			Editor editor = prefs.edit();
+			PrefRegistry.apply(snapshot, editor);
+			editor.commit();
+			prefs.registerOnSharedPreferenceChangeListener(changeListener);
+
+			showSummaries();
+		}
+	}
 
 	/**
 	 * Sense App specific preference to keep track of whether the user has logged in at least once.
@@ -127,29 +127,42 @@ public class SenseSettings extends PreferenceActivity {
 
 	private static final String TAG = "Sense Settings";
 
+	/**
+	 * Time to wait for more preference changes before they are sent to the service, in ms.
+	 */
+	private static final long SYNC_DELAY = 300;
+
 	private static final int DIALOG_DEV_MODE = 0;
 	private static final int DIALOG_LOGOUT = 1;
 
 	private PrefSyncListener changeListener = new PrefSyncListener();
+	private final Set<String> editedDuringLoad = new HashSet<String>();
+	private final Handler handler = new Handler();
+	private final Bundle pendingChanges = new Bundle();
+	private final Runnable syncPrefs = new Runnable() {
+
+		@Override
+		public void run() {
+			sendPendingChanges();
+		}
+	};
+	private LoadPrefsTask loadTask;
 	private boolean isServiceBound;
 	private ISenseService service;
-	private final ServiceConnection serviceConn = new ServiceConnection() {
+	private final ConnectionListener serviceConn = new ConnectionListener() {
 
 		@Override
-		public void onServiceConnected(ComponentName className, IBinder binder) {
+		public void onServiceConnected(ISenseService binder) {
 			// Log.v(TAG, "Bound to Sense Platform service...");
-			service = ISenseService.Stub.asInterface(binder);
-			isServiceBound = true;
+			service = binder;
 			loadPreferences();
 			showSummaries();
 		}
 
 		@Override
-		public void onServiceDisconnected(ComponentName className) {
-			/* this is not called when the service is stopped, only when it is suddenly killed! */
+		public void onServiceDisconnected() {
 			// Log.v(TAG, "Sense Platform disconnected...");
 			service = null;
-			isServiceBound = false;
 		}
 	};
 
@@ -162,8 +175,10 @@ public class SenseSettings extends PreferenceActivity {
 	private void bindToSenseService() {
 		// start the service if it was not running already
 		if (!isServiceBound) {
-			final Intent serviceIntent = new Intent(getString(R.string.action_sense_service));
-			isServiceBound = bindService(serviceIntent, serviceConn, BIND_AUTO_CREATE);
+			SenseServiceHolder holder = SenseServiceHolder.getInstance(this);
+			holder.acquire(true);
+			holder.addListener(serviceConn);
+			isServiceBound = true;
 		}
 	}
 
@@ -227,8 +242,8 @@ public class SenseSettings extends PreferenceActivity {
 	}
 
 	/**
-	 * Loads all preferences from the Sense Platform service, and puts them into this activity's
-	 * default preferences.
+	 * Loads all preferences from the Sense Platform service in a background thread, and puts them
+	 * into this activity's default preferences when they are available.
 	 */
 	private void loadPreferences() {
 
@@ -237,107 +252,13 @@ public class SenseSettings extends PreferenceActivity {
 			return;
 		}
 
-		final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-		prefs.unregisterOnSharedPreferenceChangeListener(changeListener);
-		Editor editor = prefs.edit();
-
-		try {
-			// general preferences
-			editor.putString(SensePrefs.Main.SAMPLE_RATE,
-					service.getPrefString(SensePrefs.Main.SAMPLE_RATE, "0"));
-			editor.putString(SensePrefs.Main.SYNC_RATE,
-					service.getPrefString(SensePrefs.Main.SYNC_RATE, "0"));
-			editor.putBoolean(Status.AUTOSTART, service.getPrefBool(Status.AUTOSTART, false));
-			
-			// phone state preferences
-			editor.putBoolean(PhoneState.BATTERY, service.getPrefBool(PhoneState.BATTERY, true));
-			editor.putBoolean(PhoneState.CALL_STATE, service.getPrefBool(PhoneState.CALL_STATE, true));
-			editor.putBoolean(PhoneState.SCREEN_ACTIVITY, service.getPrefBool(PhoneState.SCREEN_ACTIVITY, true));
-			editor.putBoolean(PhoneState.PROXIMITY, service.getPrefBool(PhoneState.PROXIMITY, true));
-			editor.putBoolean(PhoneState.DATA_CONNECTION, service.getPrefBool(PhoneState.DATA_CONNECTION, true));
-			editor.putBoolean(PhoneState.SERVICE_STATE, service.getPrefBool(PhoneState.SERVICE_STATE, true));
-			editor.putBoolean(PhoneState.SIGNAL_STRENGTH, service.getPrefBool(PhoneState.SIGNAL_STRENGTH, true));
-			editor.putBoolean(PhoneState.IP_ADDRESS, service.getPrefBool(PhoneState.IP_ADDRESS, true));
-			editor.putBoolean(PhoneState.UNREAD_MSG, service.getPrefBool(PhoneState.UNREAD_MSG, true));
-
-			// location preferences
-			editor.putBoolean(Location.GPS, service.getPrefBool(Location.GPS, true));
-			editor.putBoolean(Location.NETWORK, service.getPrefBool(Location.NETWORK, true));
-			editor.putBoolean(Location.AUTO_GPS, service.getPrefBool(Location.AUTO_GPS, true));
-
-			// ambience preferences
-			editor.putBoolean(Ambience.LIGHT, service.getPrefBool(Ambience.LIGHT, true));
-			editor.putBoolean(Ambience.MIC, service.getPrefBool(Ambience.MIC, true));
-			editor.putBoolean(Ambience.PRESSURE, service.getPrefBool(Ambience.PRESSURE, true));
-			editor.putBoolean(Ambience.CAMERA_LIGHT, service.getPrefBool(Ambience.CAMERA_LIGHT, true));
-			editor.putBoolean(Ambience.AUDIO_SPECTRUM, service.getPrefBool(Ambience.AUDIO_SPECTRUM, true));
-
-			// motion preferences
-			editor.putBoolean(Motion.FALL_DETECT, service.getPrefBool(Motion.FALL_DETECT, false));
-			editor.putBoolean(Motion.FALL_DETECT_DEMO,
-					service.getPrefBool(Motion.FALL_DETECT_DEMO, false));
-			editor.putBoolean(Motion.UNREG, service.getPrefBool(Motion.UNREG, true));
-			editor.putBoolean(Motion.SCREENOFF_FIX,
-					service.getPrefBool(Motion.SCREENOFF_FIX, false));
-
-			// neighboring devices
-			editor.putBoolean(DevProx.BLUETOOTH, service.getPrefBool(DevProx.BLUETOOTH, true));
-			editor.putBoolean(DevProx.WIFI, service.getPrefBool(DevProx.WIFI, true));
-			editor.putBoolean(DevProx.NFC, service.getPrefBool(DevProx.NFC, true));
-
-			// pop quiz preferences
-			editor.putString(Quiz.RATE, service.getPrefString(Quiz.RATE, "0"));
-			editor.putBoolean(Quiz.SILENT_MODE, service.getPrefBool(Quiz.SILENT_MODE, false));
-
-			// Zephir BioHarness preferences
-			editor.putBoolean(ZephyrBioHarness.MAIN,
-					service.getPrefBool(ZephyrBioHarness.MAIN, false));
-			editor.putBoolean(ZephyrBioHarness.ACC, service.getPrefBool(ZephyrBioHarness.ACC, true));
-			editor.putBoolean(ZephyrBioHarness.BATTERY,
-					service.getPrefBool(ZephyrBioHarness.BATTERY, true));
-			editor.putBoolean(ZephyrBioHarness.HEART_RATE,
-					service.getPrefBool(ZephyrBioHarness.HEART_RATE, true));
-			editor.putBoolean(ZephyrBioHarness.RESP,
-					service.getPrefBool(ZephyrBioHarness.RESP, true));
-			editor.putBoolean(ZephyrBioHarness.TEMP,
-					service.getPrefBool(ZephyrBioHarness.TEMP, true));
-			editor.putBoolean(ZephyrBioHarness.WORN_STATUS,
-					service.getPrefBool(ZephyrBioHarness.WORN_STATUS, true));
-
-			// Zephir HxM preferences
-			editor.putBoolean(ZephyrHxM.MAIN, service.getPrefBool(ZephyrHxM.MAIN, false));
-			editor.putBoolean(ZephyrHxM.BATTERY, service.getPrefBool(ZephyrHxM.BATTERY, true));
-			editor.putBoolean(ZephyrHxM.DISTANCE, service.getPrefBool(ZephyrHxM.DISTANCE, true));
-			editor.putBoolean(ZephyrHxM.HEART_RATE, service.getPrefBool(ZephyrHxM.HEART_RATE, true));
-			editor.putBoolean(ZephyrHxM.SPEED, service.getPrefBool(ZephyrHxM.SPEED, true));
-			editor.putBoolean(ZephyrHxM.STRIDES, service.getPrefBool(ZephyrHxM.STRIDES, true));
-
-			// MyGlucohealth
-			editor.putBoolean(MyGlucoHealth.MAIN, service.getPrefBool(MyGlucoHealth.MAIN, false));
-
-			// Tanita scale
-			editor.putBoolean(TanitaScale.MAIN, service.getPrefBool(TanitaScale.MAIN, false));
-
-			// ODB-II dongle
-			editor.putBoolean(OBD2Sensor.MAIN, service.getPrefBool(OBD2Sensor.MAIN, false));
-
-			// advanced settings
-			editor.putBoolean(Advanced.DEV_MODE, service.getPrefBool(Advanced.DEV_MODE, false));
-			editor.putBoolean(Advanced.COMPRESS, service.getPrefBool(Advanced.COMPRESS, true));
-			editor.putBoolean(Advanced.USE_COMMONSENSE,
-					service.getPrefBool(Advanced.USE_COMMONSENSE, true));
-			editor.putBoolean(Advanced.AGOSTINO, service.getPrefBool(Advanced.AGOSTINO, false));
-			editor.putBoolean(Motion.EPIMODE, service.getPrefBool(Motion.EPIMODE, false));
-			editor.putBoolean(Advanced.LOCATION_FEEDBACK,
-					service.getPrefBool(Advanced.LOCATION_FEEDBACK, false));
-
-			editor.commit();
-
-		} catch (RemoteException e) {
-			Log.e(TAG, "Exception getting preferences from Sense Platform service!", e);
+		if (null != loadTask) {
+			// already loading
+			return;
 		}
-
-		prefs.registerOnSharedPreferenceChangeListener(changeListener);
+		editedDuringLoad.clear();
+		loadTask = new LoadPrefsTask();
+		loadTask.execute(service);
 	}
 
 	private void logout() {
@@ -451,12 +372,25 @@ public class SenseSettings extends PreferenceActivity {
 	@Override
 	protected void onStart() {
 		super.onStart();
+
+		// record edits right away, also while the preferences are being loaded
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+		prefs.registerOnSharedPreferenceChangeListener(changeListener);
+
+		// preferences are loaded as soon as the service is connected
 		bindToSenseService();
-		loadPreferences();
 	}
 
 	@Override
 	protected void onStop() {
+		handler.removeCallbacks(syncPrefs);
+		sendPendingChanges();
+
+		if (null != loadTask) {
+			loadTask.cancel(false);
+			loadTask = null;
+		}
+
 		SharedPreferences appPrefs = PreferenceManager.getDefaultSharedPreferences(this);
 		appPrefs.unregisterOnSharedPreferenceChangeListener(changeListener);
 
@@ -464,6 +398,32 @@ public class SenseSettings extends PreferenceActivity {
 		super.onStop();
 	}
 
+	/**
+	 * Sends all collected preference changes to the Sense Platform service in one batch, and
+	 * updates the summaries once afterwards.
+	 */
+	private void sendPendingChanges() {
+
+		if (pendingChanges.isEmpty()) {
+			return;
+		}
+
+		if (null == service) {
+			Log.e(TAG, "Could not send preferences to Sense Platform service: service = null!");
+			return;
+		}
+
+		try {
+			PrefRegistry.send(service, pendingChanges);
+			pendingChanges.clear();
+		} catch (RemoteException e) {
+			Log.e(TAG, "Failed to set preferences " + pendingChanges.keySet()
+					+ " at Sense Platform service", e);
+		}
+
+		showSummaries();
+	}
+
 	/**
 	 * Sets up the Login preference to display a login dialog.
 	 */
@@ -524,39 +484,15 @@ public class SenseSettings extends PreferenceActivity {
 			regPref.setEnabled(true);
 		}
 
-		// get sample rate preference setting
+		// get sample rate preference setting, the local preferences mirror the service
+		final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
 		final Preference samplePref = findPreference(SensePrefs.Main.SAMPLE_RATE);
-		String sampleRate = "0";
-		try {
-			sampleRate = service.getPrefString(SensePrefs.Main.SAMPLE_RATE, "0");
-		} catch (RemoteException e) {
-			Log.w(TAG, "Failed to get SAMPLE_RATE from Sense Platform service", e);
-		}
-		switch (Integer.parseInt(sampleRate)) {
-		case -2: // real time
-			samplePref.setSummary("Real-time: sample as quickly a possible");
-			break;
-		case -1: // often
-			samplePref.setSummary("Often: sample every 10-20 seconds");
-			break;
-		case 0: // normal
-			samplePref.setSummary("Normal: sample every 1-5 minutes");
-			break;
-		case 1: // rarely
-			samplePref.setSummary("Rarely: sample every 15 minutes");
-			break;
-		default:
-			samplePref.setSummary("ERROR");
-		}
+		String sampleRate = prefs.getString(SensePrefs.Main.SAMPLE_RATE, "0");
+		samplePref.setSummary(SamplingPolicy.describe(SamplingPolicy.parseRate(sampleRate)));
 
 		// get sync rate preference setting
 		final Preference syncPref = findPreference(SensePrefs.Main.SYNC_RATE);
-		String syncRate = "0";
-		try {
-			syncRate = service.getPrefString(SensePrefs.Main.SYNC_RATE, "0");
-		} catch (RemoteException e) {
-			Log.e(TAG, "Failed to get username from Sense Platform service", e);
-		}
+		String syncRate = prefs.getString(SensePrefs.Main.SYNC_RATE, "0");
 		switch (Integer.parseInt(syncRate)) {
 		case -2: // real time
 			syncPref.setSummary("Real-time connection with CommonSense");
@@ -580,8 +516,10 @@ public class SenseSettings extends PreferenceActivity {
 	 */
 	private void unbindFromSenseService() {
 
-		if (true == isServiceBound && null != serviceConn) {
-			unbindService(serviceConn);
+		if (true == isServiceBound) {
+			SenseServiceHolder holder = SenseServiceHolder.getInstance(this);
+			holder.removeListener(serviceConn);
+			holder.release();
 		}
 		service = null;
 		isServiceBound = false;
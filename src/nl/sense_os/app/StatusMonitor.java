@@ -0,0 +1,225 @@
+/*
+ * *************************************************************************************************
+ * Copyright (C) 2010 Sense Observation Systems, Rotterdam, the Netherlands. All rights reserved.
+ * *************************************************************************************************
+ */
+
+package nl.sense_os.app;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.sense_os.app.SenseServiceHolder.ConnectionListener;
+import nl.sense_os.service.ISenseService;
+import nl.sense_os.service.ISenseServiceCallback;
+import nl.sense_os.service.SenseService;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.util.Log;
+
+/**
+ * Process-wide monitor for the status of the Sense service. Listens for the service broadcast once
+ * for all registered listeners, merges bursts of broadcasts that arrive within one frame into a
+ * single status request, and only notifies listeners about status reports that actually changed
+ * something.<br/>
+ * <br/>
+ * All methods must be called from the main thread. Listeners are also called on the main thread.
+ */
+public class StatusMonitor {
+
+	/**
+	 * Listener for changes in the status of the Sense service.
+	 */
+	public interface Listener {
+
+		/**
+		 * @param status
+		 *            New status bitmask, see {@link nl.sense_os.service.constants.SenseStatusCodes}
+		 * @param changed
+		 *            Bits that changed since the previous notification
+		 * @param seq
+		 *            Sequence number of this change, increases by one for every change
+		 */
+		void onStatusChanged(int status, int changed, long seq);
+	}
+
+	/**
+	 * Service stub for callbacks from the Sense service.
+	 */
+	private class SenseCallback extends ISenseServiceCallback.Stub {
+
+		@Override
+		public void onChangeLoginResult(int result) throws RemoteException {
+			// not used
+		}
+
+		@Override
+		public void onRegisterResult(int result) throws RemoteException {
+			// not used
+		}
+
+		@Override
+		public void statusReport(final int status) {
+			handler.post(new Runnable() {
+
+				@Override
+				public void run() {
+					onStatus(status);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Receiver for broadcast events from the Sense Service, e.g. when the status of the service
+	 * changes.
+	 */
+	private class SenseServiceListener extends BroadcastReceiver {
+
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			requestStatus();
+		}
+	}
+
+	/**
+	 * Time to collect status broadcasts before the status is requested from the service, in ms.
+	 */
+	private static final long FRAME_DELAY = 16;
+	private static final String TAG = "StatusMonitor";
+	private static StatusMonitor instance;
+
+	/**
+	 * @return The status monitor for this process
+	 */
+	public static StatusMonitor getInstance() {
+		if (null == instance) {
+			instance = new StatusMonitor();
+		}
+		return instance;
+	}
+
+	private final ISenseServiceCallback callback = new SenseCallback();
+	private final Handler handler = new Handler(Looper.getMainLooper());
+	private boolean hasStatus;
+	private int lastStatus;
+	private final List<Listener> listeners = new ArrayList<Listener>();
+	private final BroadcastReceiver receiver = new SenseServiceListener();
+	private Context receiverContext;
+	private long seq;
+	private ISenseService service;
+	private final ConnectionListener serviceListener = new ConnectionListener() {
+
+		@Override
+		public void onServiceConnected(ISenseService binder) {
+			service = binder;
+			requestStatus();
+		}
+
+		@Override
+		public void onServiceDisconnected() {
+			service = null;
+			handler.removeCallbacks(statusRequest);
+		}
+	};
+	private final Runnable statusRequest = new Runnable() {
+
+		@Override
+		public void run() {
+			if (null == service) {
+				return;
+			}
+			try {
+				service.getStatus(callback);
+			} catch (final RemoteException e) {
+				Log.e(TAG, "Error checking service status. ", e);
+			}
+		}
+	};
+
+	private StatusMonitor() {
+		// use getInstance()
+	}
+
+	private void onStatus(int status) {
+		int changed = hasStatus ? status ^ lastStatus : 0xFFFFFFFF;
+		if (0 == changed) {
+			// nothing new to report
+			return;
+		}
+
+		hasStatus = true;
+		lastStatus = status;
+		seq++;
+		for (Listener listener : new ArrayList<Listener>(listeners)) {
+			listener.onStatusChanged(status, changed, seq);
+		}
+	}
+
+	/**
+	 * Registers a listener. If the status is already known, the listener is immediately notified
+	 * with all bits marked as changed. The monitor does not bind to the Sense service itself: it
+	 * requests status reports whenever another component keeps the {@link SenseServiceHolder}
+	 * connected.
+	 *
+	 * @param context
+	 *            Context to register the service broadcast receiver with
+	 * @param listener
+	 *            Listener to add
+	 */
+	public void register(Context context, Listener listener) {
+		if (listeners.contains(listener)) {
+			return;
+		}
+		listeners.add(listener);
+
+		if (null == receiverContext) {
+			receiverContext = context.getApplicationContext();
+			IntentFilter filter = new IntentFilter(SenseService.ACTION_SERVICE_BROADCAST);
+			receiverContext.registerReceiver(receiver, filter);
+			SenseServiceHolder.getInstance(context).addListener(serviceListener);
+		}
+
+		if (hasStatus) {
+			listener.onStatusChanged(lastStatus, 0xFFFFFFFF, seq);
+		}
+	}
+
+	/**
+	 * Requests a status report from the service. Requests that are made within one frame are
+	 * merged into a single call to the service.
+	 */
+	public void requestStatus() {
+		handler.removeCallbacks(statusRequest);
+		handler.postDelayed(statusRequest, FRAME_DELAY);
+	}
+
+	/**
+	 * Unregisters a listener. The service broadcast receiver is unregistered with the last
+	 * listener.
+	 *
+	 * @param listener
+	 *            Listener to remove
+	 */
+	public void unregister(Listener listener) {
+		listeners.remove(listener);
+
+		if (listeners.isEmpty() && null != receiverContext) {
+			try {
+				receiverContext.unregisterReceiver(receiver);
+			} catch (IllegalArgumentException e) {
+				// receiver was not registered
+			}
+			SenseServiceHolder.getInstance(receiverContext).removeListener(serviceListener);
+			receiverContext = null;
+			service = null;
+			handler.removeCallbacks(statusRequest);
+			hasStatus = false;
+		}
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ * *************************************************************************************************
+ * Copyright (C) 2010 Sense Observation Systems, Rotterdam, the Netherlands. All rights reserved.
+ * *************************************************************************************************
+ */
+
+package nl.sense_os.app;
+
+import nl.sense_os.app.diagnostics.Diagnostics;
+import nl.sense_os.service.constants.SenseStatusCodes;
+import android.app.Activity;
+import android.os.Handler;
+import android.view.View;
+import android.widget.CheckBox;
+import android.widget.TextView;
+
+/**
+ * Shows the status of the Sense Platform service in the main screen. Looks up the views only once,
+ * and only touches the rows whose status bits changed since the last rendered status. Status
+ * updates that arrive within one frame are rendered together.<br/>
+ * <br/>
+ * Must be used from the main thread.
+ */
+public class StatusViewModel {
+
+	/**
+	 * Row in the list of sensors, with the status bit that it shows.
+	 */
+	private static class SensorRow {
+		final int bit;
+		final CheckBox button;
+		final View text1;
+		final View text2;
+
+		SensorRow(Activity activity, int bit, int buttonId, int text1Id, int text2Id) {
+			this.bit = bit;
+			button = (CheckBox) activity.findViewById(buttonId);
+			text1 = activity.findViewById(text1Id);
+			text2 = activity.findViewById(text2Id);
+		}
+	}
+
+	/**
+	 * Time between two renders, in ms.
+	 */
+	private static final long FRAME_DELAY = 16;
+
+	private final Handler handler = new Handler();
+	private boolean hasRendered;
+	private final CheckBox mainButton;
+	private final TextView mainDescription;
+	private final TextView mainFirstLine;
+	private int pendingStatus;
+	private boolean renderPosted;
+	private int renderedStatus;
+	private final Runnable renderTask = new Runnable() {
+
+		@Override
+		public void run() {
+			renderPosted = false;
+			render(pendingStatus);
+		}
+	};
+	private final SensorRow[] rows;
+
+	/**
+	 * @param activity
+	 *            Activity with the main screen layout
+	 */
+	public StatusViewModel(Activity activity) {
+		mainButton = (CheckBox) activity.findViewById(R.id.main_cb);
+		mainFirstLine = (TextView) activity.findViewById(R.id.main_firstline);
+		mainDescription = (TextView) activity.findViewById(R.id.main_secondLine);
+		rows = new SensorRow[] {
+				new SensorRow(activity, SenseStatusCodes.PHONESTATE, R.id.phonestate_cb,
+						R.id.phonestate_firstline, R.id.phonestate_secondLine),
+				new SensorRow(activity, SenseStatusCodes.LOCATION, R.id.location_cb,
+						R.id.location_firstline, R.id.location_secondLine),
+				new SensorRow(activity, SenseStatusCodes.MOTION, R.id.motion_cb,
+						R.id.motion_firstline, R.id.motion_secondLine),
+				new SensorRow(activity, SenseStatusCodes.AMBIENCE, R.id.ambience_cb,
+						R.id.ambience_firstline, R.id.ambience_secondLine),
+				new SensorRow(activity, SenseStatusCodes.DEVICE_PROX, R.id.device_prox_cb,
+						R.id.device_prox_firstline, R.id.device_prox_secondLine),
+				new SensorRow(activity, SenseStatusCodes.EXTERNAL, R.id.external_sensor_cb,
+						R.id.external_sensor_firstline, R.id.external_sensor_secondLine) };
+	}
+
+	/**
+	 * Cancels a pending render, e.g. when the activity is stopped.
+	 */
+	public void cancel() {
+		handler.removeCallbacks(renderTask);
+		renderPosted = false;
+	}
+
+	private void render(int status) {
+		int changed = hasRendered ? status ^ renderedStatus : 0xFFFFFFFF;
+		if (0 == changed) {
+			return;
+		}
+
+		final boolean running = (status & SenseStatusCodes.RUNNING) > 0;
+		final boolean runningChanged = (changed & SenseStatusCodes.RUNNING) > 0;
+
+		// change description of main service field
+		if (runningChanged) {
+			mainButton.setChecked(running);
+			if (running) {
+				mainDescription.setText("Press to disable sensing");
+			} else {
+				mainDescription.setText("Press to enable sensing");
+			}
+		}
+
+		// show connection status in main service field
+		if ((changed & SenseStatusCodes.CONNECTED) > 0) {
+			if ((status & SenseStatusCodes.CONNECTED) > 0) {
+				mainFirstLine.setText("Sense service");
+			} else {
+				mainFirstLine.setText("Sense service (not logged in)");
+			}
+		}
+
+		// sensor rows are only enabled when the service is running
+		for (SensorRow row : rows) {
+			if ((changed & row.bit) > 0) {
+				row.button.setChecked((status & row.bit) > 0);
+			}
+			if (runningChanged) {
+				row.button.setEnabled(running);
+				row.text1.setEnabled(running);
+				row.text2.setEnabled(running);
+			}
+		}
+
+		renderedStatus = status;
+		hasRendered = true;
+		Diagnostics.startupEnd();
+	}
+
+	/**
+	 * Schedules a status to be shown. If several statuses are set within one frame, only the last
+	 * one is rendered.
+	 *
+	 * @param status
+	 *            The status of the service.
+	 * @see SenseStatusCodes
+	 */
+	public void setStatus(int status) {
+		pendingStatus = status;
+		if (!renderPosted) {
+			renderPosted = true;
+			handler.postDelayed(renderTask, FRAME_DELAY);
+		}
+	}
+}
@@ -15,6 +15,8 @@ public class SenseWidgetProvider extends AppWidgetProvider {
     @Override
     public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
         Log.d(TAG, "Update widget");
-        context.startService(new Intent(context.getString(R.string.action_widget_update)));
+        Intent update = new Intent(context.getString(R.string.action_widget_update));
+        update.putExtra(SenseWidgetUpdater.EXTRA_FULL_UPDATE, true);
+        context.startService(update);
     }
 }
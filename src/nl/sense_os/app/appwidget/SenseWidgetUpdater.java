@@ -1,18 +1,26 @@
 package nl.sense_os.app.appwidget;
 
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 import nl.sense_os.app.R;
+import nl.sense_os.app.SenseServiceHolder;
+import nl.sense_os.app.SenseServiceHolder.ConnectionListener;
+import nl.sense_os.app.sampling.SamplingPolicy;
 import nl.sense_os.service.ISenseService;
 import nl.sense_os.service.ISenseServiceCallback;
 import nl.sense_os.service.constants.SensePrefs.Main;
 import nl.sense_os.service.constants.SenseStatusCodes;
+import android.annotation.TargetApi;
 import android.app.IntentService;
 import android.app.PendingIntent;
 import android.appwidget.AppWidgetManager;
 import android.content.ComponentName;
 import android.content.Intent;
-import android.content.ServiceConnection;
-import android.os.IBinder;
+import android.os.Build;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.RemoteViews;
 
@@ -40,38 +48,110 @@ public class SenseWidgetUpdater extends IntentService {
     }
 
     /**
-     * Service connection to handle connection with the Sense service. Manages the
-     * <code>service</code> field when the service is connected or disconnected.
+     * Listener for the connection with the Sense service. Manages the <code>service</code> field
+     * when the service is connected or disconnected.
      */
-    private class SenseServiceConn implements ServiceConnection {
+    private class SenseServiceConn implements ConnectionListener {
 
         @Override
-        public void onServiceConnected(ComponentName className, IBinder binder) {
+        public void onServiceConnected(ISenseService binder) {
             // Log.v(TAG, "Bound to Sense Platform service...");
-            service = ISenseService.Stub.asInterface(binder);
+            service = binder;
+            bindLatch.countDown();
         }
 
         @Override
-        public void onServiceDisconnected(ComponentName className) {
+        public void onServiceDisconnected() {
             // Log.v(TAG, "Sense Platform service disconnected...");
             service = null;
-            isBoundOrBinding = false;
-            checkServiceStatus();
+            bindLatch = new CountDownLatch(1);
+            updateWidgets(0);
         }
     }
 
     private static final String TAG = "Sense Widget Updater";
 
+    /**
+     * Intent extra that makes the updater render the widgets completely on the next status report,
+     * e.g. when the launcher asks for an update.
+     */
+    public static final String EXTRA_FULL_UPDATE = "full_update";
+
+    /**
+     * Sensor buttons of the widget: status bit, view ID, on and off drawable, start and stop
+     * action.
+     */
+    private static final int[][] BUTTONS = {
+            { SenseStatusCodes.PHONESTATE, R.id.widget_phone_state_btn,
+                    R.drawable.wi_pst_on_selector, R.drawable.wi_pst_off_selector,
+                    R.string.action_widget_start_phone_state,
+                    R.string.action_widget_stop_phone_state },
+            { SenseStatusCodes.LOCATION, R.id.widget_location_btn,
+                    R.drawable.wi_loc_on_selector, R.drawable.wi_loc_off_selector,
+                    R.string.action_widget_start_location, R.string.action_widget_stop_location },
+            { SenseStatusCodes.MOTION, R.id.widget_motion_btn, R.drawable.wi_mot_on_selector,
+                    R.drawable.wi_mot_off_selector, R.string.action_widget_start_motion,
+                    R.string.action_widget_stop_motion },
+            { SenseStatusCodes.AMBIENCE, R.id.widget_ambience_btn,
+                    R.drawable.wi_amb_on_selector, R.drawable.wi_amb_off_selector,
+                    R.string.action_widget_start_ambience, R.string.action_widget_stop_ambience },
+            { SenseStatusCodes.DEVICE_PROX, R.id.widget_devices_btn,
+                    R.drawable.wi_dev_on_selector, R.drawable.wi_dev_off_selector,
+                    R.string.action_widget_start_devices, R.string.action_widget_stop_devices } };
+
+    /**
+     * Sample rate button drawables for the rates of the {@link SamplingPolicy}, from real-time to
+     * rarely.
+     */
+    private static final int[] SAMPLE_ICONS = { R.drawable.wi_smp_4_selector,
+            R.drawable.wi_smp_3_selector, R.drawable.wi_smp_2_selector,
+            R.drawable.wi_smp_1_selector };
+
+    private static final int ALL_SENSORS = SenseStatusCodes.PHONESTATE
+            | SenseStatusCodes.LOCATION | SenseStatusCodes.MOTION | SenseStatusCodes.AMBIENCE
+            | SenseStatusCodes.DEVICE_PROX;
+
+    /*
+     * Last state that was rendered on the widgets. Kept for the whole process, because a new
+     * instance of this service is created for every batch of intents.
+     */
+    private static boolean forceFullUpdate = true;
+    private static int lastStatus;
+    private static int lastSampleRate;
+    private static int lastSyncRate;
+    private static int[] lastWidgetIds = new int[0];
+
     private final ISenseServiceCallback callback = new SenseCallback();
 
+    private volatile CountDownLatch bindLatch = new CountDownLatch(1);
     private boolean isBoundOrBinding;
-    private ISenseService service;
-    private final ServiceConnection serviceConn = new SenseServiceConn();
+    private volatile ISenseService service;
+    private final SenseServiceConn serviceConn = new SenseServiceConn();
 
     public SenseWidgetUpdater() {
         super(TAG);
     }
 
+    /**
+     * Waits until the Sense service is bound, or until the bind timeout expires.
+     * 
+     * @return The bound service, or <code>null</code> if it was not bound in time
+     */
+    private ISenseService awaitService() {
+        ISenseService bound = service;
+        if (null != bound) {
+            return bound;
+        }
+
+        long timeout = getResources().getInteger(R.integer.widget_bind_timeout);
+        try {
+            bindLatch.await(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return service;
+    }
+
     /**
      * Binds to the Sense Service, creating it if necessary.
      */
@@ -80,41 +160,50 @@ public class SenseWidgetUpdater extends IntentService {
         // start the service if it was not running already
         if (!isBoundOrBinding) {
             // Log.v(TAG, "Try to bind to Sense Platform service");
-            final Intent serviceIntent = new Intent(getString(R.string.action_sense_service));
-            isBoundOrBinding = bindService(serviceIntent, serviceConn, 0);
+            SenseServiceHolder holder = SenseServiceHolder.getInstance(this);
+            holder.acquire(false);
+            holder.addListener(serviceConn);
+            isBoundOrBinding = true;
         } else {
             // already bound
         }
     }
 
     /**
-     * Calls {@link ISenseService#getStatus(ISenseServiceCallback)} on the service. This will
-     * generate a callback that updates the buttons ToggleButtons showing the service's state.
+     * Executes a widget command on the Sense service.
+     * 
+     * @param service
+     *            The bound Sense service
+     * @param action
+     *            Intent action of the command
+     * @throws RemoteException
      */
-    private void checkServiceStatus() {
-
-        // wait until the service is bound
-        int counter = 0;
-        while (null == service && counter < 5) {
-            try {
-                Thread.sleep(20);
-                counter++;
-            } catch (InterruptedException e) {
-                break;
-            }
-        }
-
-        // Log.v(TAG, "Checking service status..");
-        if (null != service) {
-            try {
-                // request status report
-                service.getStatus(callback);
-            } catch (final RemoteException e) {
-                Log.e(TAG, "Error checking service status. ", e);
-            }
+    private void execute(ISenseService service, String action) throws RemoteException {
+        if (getString(R.string.action_widget_update).equals(action)) {
+            // request status report
+            service.getStatus(callback);
+        } else if (getString(R.string.action_widget_start_phone_state).equals(action)) {
+            service.togglePhoneState(true);
+        } else if (getString(R.string.action_widget_stop_phone_state).equals(action)) {
+            service.togglePhoneState(false);
+        } else if (getString(R.string.action_widget_start_location).equals(action)) {
+            service.toggleLocation(true);
+        } else if (getString(R.string.action_widget_stop_location).equals(action)) {
+            service.toggleLocation(false);
+        } else if (getString(R.string.action_widget_start_motion).equals(action)) {
+            service.toggleMotion(true);
+        } else if (getString(R.string.action_widget_stop_motion).equals(action)) {
+            service.toggleMotion(false);
+        } else if (getString(R.string.action_widget_start_ambience).equals(action)) {
+            service.toggleAmbience(true);
+        } else if (getString(R.string.action_widget_stop_ambience).equals(action)) {
+            service.toggleAmbience(false);
+        } else if (getString(R.string.action_widget_start_devices).equals(action)) {
+            service.toggleDeviceProx(true);
+        } else if (getString(R.string.action_widget_stop_devices).equals(action)) {
+            service.toggleDeviceProx(false);
         } else {
-            // Log.v(TAG, "Not bound to Sense Platform service! Assume it's not running...");
-            updateWidgets(0);
+            Log.w(TAG, "Unexpected intent action: " + action);
         }
     }
 
@@ -135,161 +224,42 @@ public class SenseWidgetUpdater extends IntentService {
     @Override
     protected void onHandleIntent(Intent intent) {
         String action = intent.getAction();
-        if (getString(R.string.action_widget_update).equals(action)) {
-            checkServiceStatus();
-        } else if (getString(R.string.action_widget_start_phone_state).equals(action)) {
-            setPhoneState(true);
-        } else if (getString(R.string.action_widget_stop_phone_state).equals(action)) {
-            setPhoneState(false);
-        } else if (getString(R.string.action_widget_start_location).equals(action)) {
-            setLocation(true);
-        } else if (getString(R.string.action_widget_stop_location).equals(action)) {
-            setLocation(false);
-        } else if (getString(R.string.action_widget_start_motion).equals(action)) {
-            setMotion(true);
-        } else if (getString(R.string.action_widget_stop_motion).equals(action)) {
-            setMotion(false);
-        } else if (getString(R.string.action_widget_start_ambience).equals(action)) {
-            setAmbience(true);
-        } else if (getString(R.string.action_widget_stop_ambience).equals(action)) {
-            setAmbience(false);
-        } else if (getString(R.string.action_widget_start_devices).equals(action)) {
-            setDevices(true);
-        } else if (getString(R.string.action_widget_stop_devices).equals(action)) {
-            setDevices(false);
-        } else {
-            Log.w(TAG, "Unexpected intent action: " + action);
-        }
-    }
-
-    private void setAmbience(boolean active) {
-
-        // wait until the service is bound
-        int counter = 0;
-        while (null == service && counter < 5) {
-            try {
-                Thread.sleep(20);
-                counter++;
-            } catch (InterruptedException e) {
-                break;
-            }
-        }
-
-        // Log.d(TAG, "Set ambience: " + active);
-        if (null != service) {
-            try {
-                // request status report
-                service.toggleAmbience(active);
-            } catch (final RemoteException e) {
-                Log.e(TAG, "Error setting ambience sensor status. ", e);
+        boolean isUpdate = getString(R.string.action_widget_update).equals(action);
+        if (intent.getBooleanExtra(EXTRA_FULL_UPDATE, false)) {
+            synchronized (SenseWidgetUpdater.class) {
+                forceFullUpdate = true;
             }
-        } else {
-            Log.w(TAG, "Cannot set ambience sensor status! Failed to bind to Sense service!");
-        }
-    }
-
-    private void setDevices(boolean active) {
-
-        // wait until the service is bound
-        int counter = 0;
-        while (null == service && counter < 5) {
-            try {
-                Thread.sleep(20);
-                counter++;
-            } catch (InterruptedException e) {
-                break;
-            }
-        }
-
-        // Log.d(TAG, "Set devices: " + active);
-        if (null != service) {
-            try {
-                // request status report
-                service.toggleDeviceProx(active);
-            } catch (final RemoteException e) {
-                Log.e(TAG, "Error setting device proximity sensor status. ", e);
-            }
-        } else {
-            Log.w(TAG,
-                    "Cannot set device proximity sensor status! Failed to bind to Sense service!");
         }
-    }
-
-    private void setLocation(boolean active) {
 
-        // wait until the service is bound
-        int counter = 0;
-        while (null == service && counter < 5) {
-            try {
-                Thread.sleep(20);
-                counter++;
-            } catch (InterruptedException e) {
-                break;
+        if (isUpdate) {
+            // the widget does not create the service: without a connection it is not running
+            ISenseService service = this.service;
+            if (null == service) {
+                // Log.v(TAG, "Not bound to Sense Platform service! Assume it's not running...");
+                updateWidgets(0);
+                return;
             }
-        }
-
-        // Log.d(TAG, "Set location: " + active);
-        if (null != service) {
             try {
-                // request status report
-                service.toggleLocation(active);
-            } catch (final RemoteException e) {
-                Log.e(TAG, "Error setting location sensor status. ", e);
+                execute(service, action);
+            } catch (RemoteException e) {
+                Log.e(TAG, "Error executing widget command " + action, e);
             }
-        } else {
-            Log.w(TAG, "Cannot set location sensor status! Failed to bind to Sense service!");
+            return;
         }
-    }
-
-    private void setMotion(boolean active) {
 
-        // wait until the service is bound
-        int counter = 0;
-        while (null == service && counter < 5) {
-            try {
-                Thread.sleep(20);
-                counter++;
-            } catch (InterruptedException e) {
-                break;
-            }
+        ISenseService service = awaitService();
+        if (null == service) {
+            Log.w(TAG, "Sense service is not bound yet, queueing widget command: " + action);
+            long queuedAt = intent.getLongExtra(WidgetCommandQueue.EXTRA_QUEUED_AT,
+                    SystemClock.elapsedRealtime());
+            WidgetCommandQueue.offer(this, action, queuedAt);
+            return;
         }
 
-        // Log.d(TAG, "Set motion: " + active);
-        if (null != service) {
-            try {
-                // request status report
-                service.toggleMotion(active);
-            } catch (final RemoteException e) {
-                Log.e(TAG, "Error setting motion sensor status. ", e);
-            }
-        } else {
-            Log.w(TAG, "Cannot set motion sensor status! Failed to bind to Sense service!");
-        }
-    }
-
-    private void setPhoneState(boolean active) {
-
-        // wait until the service is bound
-        int counter = 0;
-        while (null == service && counter < 5) {
-            try {
-                Thread.sleep(20);
-                counter++;
-            } catch (InterruptedException e) {
-                break;
-            }
-        }
-
-        // Log.d(TAG, "Set phone state: " + active);
-        if (null != service) {
-            try {
-                // request status report
-                service.togglePhoneState(active);
-            } catch (final RemoteException e) {
-                Log.e(TAG, "Error setting phone state sensor status. ", e);
-            }
-        } else {
-            Log.w(TAG, "Cannot set phone state sensor status! Failed to bind to Sense service!");
+        try {
+            execute(service, action);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Error executing widget command " + action, e);
         }
     }
 
@@ -298,9 +268,11 @@ public class SenseWidgetUpdater extends IntentService {
      */
     private void unbindFromSenseService() {
 
-        if ((true == isBoundOrBinding) && (null != serviceConn)) {
+        if (true == isBoundOrBinding) {
             // Log.v(TAG, "Unbind from Sense Platform service");
-            unbindService(serviceConn);
+            SenseServiceHolder holder = SenseServiceHolder.getInstance(this);
+            holder.removeListener(serviceConn);
+            holder.release();
         } else {
             // already unbound
         }
@@ -308,65 +280,40 @@ public class SenseWidgetUpdater extends IntentService {
         isBoundOrBinding = false;
     }
 
-    private void updateSensorViews(RemoteViews views, int status) {
-        /* phone state */
-        boolean active = ((status & SenseStatusCodes.PHONESTATE) > 0);
-        views.setImageViewResource(R.id.widget_phone_state_btn,
-                active ? R.drawable.wi_pst_on_selector : R.drawable.wi_pst_off_selector);
+    /**
+     * Sets the image and click action of a single sensor button.
+     * 
+     * @param button
+     *            Row from {@link #BUTTONS}
+     */
+    private void updateSensorButton(RemoteViews views, int[] button, boolean active) {
+        views.setImageViewResource(button[1], active ? button[2] : button[3]);
 
-        Intent intent = new Intent(active ? getString(R.string.action_widget_stop_phone_state)
-                : getString(R.string.action_widget_start_phone_state));
+        Intent intent = new Intent(getString(active ? button[5] : button[4]));
         PendingIntent pendingIntent = PendingIntent.getService(this, 0, intent, 0);
-        views.setOnClickPendingIntent(R.id.widget_phone_state_btn, pendingIntent);
-
-        /* location */
-        active = ((status & SenseStatusCodes.LOCATION) > 0);
-        views.setImageViewResource(R.id.widget_location_btn, active ? R.drawable.wi_loc_on_selector
-                : R.drawable.wi_loc_off_selector);
-
-        intent = new Intent(active ? getString(R.string.action_widget_stop_location)
-                : getString(R.string.action_widget_start_location));
-        pendingIntent = PendingIntent.getService(this, 0, intent, 0);
-        views.setOnClickPendingIntent(R.id.widget_location_btn, pendingIntent);
-
-        /* motion */
-        active = ((status & SenseStatusCodes.MOTION) > 0);
-        views.setImageViewResource(R.id.widget_motion_btn, active ? R.drawable.wi_mot_on_selector
-                : R.drawable.wi_mot_off_selector);
-
-        intent = new Intent(active ? getString(R.string.action_widget_stop_motion)
-                : getString(R.string.action_widget_start_motion));
-        pendingIntent = PendingIntent.getService(this, 0, intent, 0);
-        views.setOnClickPendingIntent(R.id.widget_motion_btn, pendingIntent);
-
-        /* ambience */
-        active = ((status & SenseStatusCodes.AMBIENCE) > 0);
-        views.setImageViewResource(R.id.widget_ambience_btn, active ? R.drawable.wi_amb_on_selector
-                : R.drawable.wi_amb_off_selector);
-
-        intent = new Intent(active ? getString(R.string.action_widget_stop_ambience)
-                : getString(R.string.action_widget_start_ambience));
-        pendingIntent = PendingIntent.getService(this, 0, intent, 0);
-        views.setOnClickPendingIntent(R.id.widget_ambience_btn, pendingIntent);
-
-        /* devices */
-        active = ((status & SenseStatusCodes.DEVICE_PROX) > 0);
-        views.setImageViewResource(R.id.widget_devices_btn, active ? R.drawable.wi_dev_on_selector
-                : R.drawable.wi_dev_off_selector);
-
-        intent = new Intent(active ? getString(R.string.action_widget_stop_devices)
-                : getString(R.string.action_widget_start_devices));
-        pendingIntent = PendingIntent.getService(this, 0, intent, 0);
-        views.setOnClickPendingIntent(R.id.widget_devices_btn, pendingIntent);
+        views.setOnClickPendingIntent(button[1], pendingIntent);
+    }
+
+    /**
+     * Renders the sensor buttons whose status bit is set in the change mask.
+     */
+    private void updateSensorViews(RemoteViews views, int status, int changed) {
+        for (int[] row : BUTTONS) {
+            if ((changed & row[0]) > 0) {
+                updateSensorButton(views, row, (status & row[0]) > 0);
+            }
+        }
     }
 
     private void updateWidgets(int status) {
 
         // get the sync and sample rate from the service
         int sampleRate = 10, syncRate = 10;
-        if (status != 0) {
+        ISenseService service = this.service;
+        if (status != 0 && null != service) {
             try {
-                sampleRate = Integer.parseInt(service.getPrefString(Main.SAMPLE_RATE, "0"));
+                sampleRate = SamplingPolicy.parseRate(service.getPrefString(Main.SAMPLE_RATE,
+                        "0"));
                 syncRate = Integer.parseInt(service.getPrefString(Main.SYNC_RATE, "0"));
             } catch (RemoteException e) {
                 Log.w(TAG, "Could not fetch sync or sample rate preference from the service!");
@@ -377,36 +324,55 @@ public class SenseWidgetUpdater extends IntentService {
         AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(this);
         ComponentName provider = new ComponentName(this, SenseWidgetProvider.class);
         int[] appWidgetIds = appWidgetManager.getAppWidgetIds(provider);
+        Arrays.sort(appWidgetIds);
+
+        synchronized (SenseWidgetUpdater.class) {
+            boolean full = forceFullUpdate || !Arrays.equals(appWidgetIds, lastWidgetIds)
+                    || Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB;
+            int changed = full ? ALL_SENSORS : (status ^ lastStatus) & ALL_SENSORS;
+            boolean ratesChanged = full || sampleRate != lastSampleRate
+                    || syncRate != lastSyncRate;
+
+            if (changed == 0 && !ratesChanged) {
+                // nothing to do
+                return;
+            }
 
-        for (int appWidgetId : appWidgetIds) {
             RemoteViews views = new RemoteViews(getPackageName(), R.layout.widget);
+            updateSensorViews(views, status, changed);
+            if (ratesChanged) {
+                updateSampleSyncViews(views, sampleRate, syncRate);
+            }
 
-            updateSensorViews(views, status);
-            updateSampleSyncViews(views, sampleRate, syncRate);
+            if (full) {
+                appWidgetManager.updateAppWidget(appWidgetIds, views);
+            } else {
+                partiallyUpdateWidgets(appWidgetManager, appWidgetIds, views);
+            }
 
-            appWidgetManager.updateAppWidget(appWidgetId, views);
+            lastStatus = status;
+            lastSampleRate = sampleRate;
+            lastSyncRate = syncRate;
+            lastWidgetIds = appWidgetIds;
+            forceFullUpdate = false;
         }
     }
 
+    @TargetApi(11)
+    private void partiallyUpdateWidgets(AppWidgetManager appWidgetManager, int[] appWidgetIds,
+            RemoteViews views) {
+        appWidgetManager.partiallyUpdateAppWidget(appWidgetIds, views);
+    }
+
     private void updateSampleSyncViews(RemoteViews views, int sampleRate, int syncRate) {
 
         // sample rate button
-        switch (sampleRate) {
-        case -2: // real time
-            views.setImageViewResource(R.id.widget_sample_btn, R.drawable.wi_smp_4_selector);
-            break;
-        case -1: // often
-            views.setImageViewResource(R.id.widget_sample_btn, R.drawable.wi_smp_3_selector);
-            break;
-        case 0: // normal
-            views.setImageViewResource(R.id.widget_sample_btn, R.drawable.wi_smp_2_selector);
-            break;
-        case 1: // rarely
-            views.setImageViewResource(R.id.widget_sample_btn, R.drawable.wi_smp_1_selector);
-            break;
-        default: // no sampling
-            views.setImageViewResource(R.id.widget_sample_btn, R.drawable.wi_smp_0_selector);
+        int sampleIcon = R.drawable.wi_smp_0_selector; // no sampling
+        if (sampleRate >= SamplingPolicy.RATE_REAL_TIME
+                && sampleRate <= SamplingPolicy.RATE_RARELY) {
+            sampleIcon = SAMPLE_ICONS[sampleRate - SamplingPolicy.RATE_REAL_TIME];
         }
+        views.setImageViewResource(R.id.widget_sample_btn, sampleIcon);
 
         // sync rate button
         switch (syncRate) {
@@ -0,0 +1,140 @@
+package nl.sense_os.app.appwidget;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.sense_os.app.R;
+import nl.sense_os.app.SenseServiceHolder;
+import nl.sense_os.app.SenseServiceHolder.ConnectionListener;
+import nl.sense_os.service.ISenseService;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Holds widget commands that could not be executed because the Sense service was not connected in
+ * time. While commands are queued, the queue keeps its own reference to the service connection, so
+ * the binding outlives the {@link SenseWidgetUpdater} that gave up waiting. As soon as the service
+ * connects, the commands are sent to the updater again, in the order they were queued. Commands
+ * that are not replayed within the time to live are dropped, so an old tap never toggles a sensor
+ * unexpectedly.<br/>
+ * <br/>
+ * Can be used from any thread, the queue itself runs on the main thread.
+ */
+class WidgetCommandQueue implements ConnectionListener {
+
+    /**
+     * Intent extra with the time at which a command was first queued, in ms since boot. Kept on
+     * replayed commands, so a command that has to wait again still expires in time.
+     */
+    static final String EXTRA_QUEUED_AT = "queued_at";
+
+    private static final String TAG = "Sense Widget Updater";
+    private static WidgetCommandQueue instance;
+
+    /**
+     * Queues a command for replay as soon as the Sense service connects.
+     *
+     * @param context
+     *            Context of the widget updater
+     * @param action
+     *            Intent action of the command
+     * @param queuedAt
+     *            Time at which the command was first queued, in ms since boot
+     */
+    static void offer(Context context, final String action, final long queuedAt) {
+        final Context appContext = context.getApplicationContext();
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+
+            @Override
+            public void run() {
+                if (null == instance) {
+                    instance = new WidgetCommandQueue(appContext);
+                }
+                instance.add(action, queuedAt);
+            }
+        });
+    }
+
+    private final List<String> actions = new ArrayList<String>();
+    private final Context context;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private boolean isConnecting;
+    private final List<Long> queuedAt = new ArrayList<Long>();
+    private final long timeToLive;
+    private final Runnable expireTask = new Runnable() {
+
+        @Override
+        public void run() {
+            expire();
+        }
+    };
+
+    private WidgetCommandQueue(Context context) {
+        this.context = context;
+        timeToLive = context.getResources().getInteger(R.integer.widget_command_ttl);
+    }
+
+    private void add(String action, long time) {
+        actions.add(action);
+        queuedAt.add(time);
+        expire();
+
+        if (!actions.isEmpty() && !isConnecting) {
+            isConnecting = true;
+            SenseServiceHolder holder = SenseServiceHolder.getInstance(context);
+            holder.acquire(false);
+            holder.addListener(this);
+        }
+    }
+
+    /**
+     * Drops the commands that are older than the time to live, and releases the connection when
+     * the queue is empty.
+     */
+    private void expire() {
+        long now = SystemClock.elapsedRealtime();
+        while (!queuedAt.isEmpty() && now - queuedAt.get(0) >= timeToLive) {
+            Log.w(TAG, "Sense service did not connect in time, dropping widget command: "
+                    + actions.remove(0));
+            queuedAt.remove(0);
+        }
+
+        handler.removeCallbacks(expireTask);
+        if (queuedAt.isEmpty()) {
+            release();
+        } else {
+            handler.postDelayed(expireTask, queuedAt.get(0) + timeToLive - now);
+        }
+    }
+
+    @Override
+    public void onServiceConnected(ISenseService service) {
+        expire();
+        for (int i = 0; i < actions.size(); i++) {
+            Intent intent = new Intent(actions.get(i));
+            intent.putExtra(EXTRA_QUEUED_AT, queuedAt.get(i).longValue());
+            context.startService(intent);
+        }
+        actions.clear();
+        queuedAt.clear();
+        expire();
+    }
+
+    @Override
+    public void onServiceDisconnected() {
+        // keep waiting until the commands expire
+    }
+
+    private void release() {
+        if (isConnecting) {
+            isConnecting = false;
+            SenseServiceHolder holder = SenseServiceHolder.getInstance(context);
+            holder.removeListener(this);
+            holder.release();
+        }
+    }
+}
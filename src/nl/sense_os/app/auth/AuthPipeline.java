@@ -0,0 +1,281 @@
+package nl.sense_os.app.auth;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import nl.sense_os.service.ISenseService;
+import nl.sense_os.service.ISenseServiceCallback;
+import nl.sense_os.service.commonsense.SenseApi;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.util.Log;
+
+/**
+ * Runs login and registration requests for the Sense service without blocking the UI thread.
+ * Password hashing and the remote call are done on a background thread, and a request
+ * that does not get a result within the timeout is reported as {@link Result#TIMEOUT}, so the user
+ * can try again.<br/>
+ * <br/>
+ * Only one request runs at a time: submitting a new request cancels the previous one. Progress and
+ * results are delivered to the listener on the main thread, and never before the call that
+ * submitted the request has returned.
+ */
+public class AuthPipeline {
+
+    /**
+     * Listener for the progress and result of a request.
+     */
+    public interface Listener {
+
+        /**
+         * @param progress
+         *            The step that the request has reached
+         */
+        void onAuthProgress(Progress progress);
+
+        /**
+         * @param result
+         *            The result of the request. Called exactly once per request.
+         */
+        void onAuthResult(Result result);
+    }
+
+    /**
+     * Steps of a request.
+     */
+    public enum Progress {
+        /** The password is being hashed */
+        HASHING,
+        /** The request is being sent to the Sense service */
+        SENDING,
+        /** Waiting for the Sense service to report the result from CommonSense */
+        WAITING
+    }
+
+    /**
+     * Results of a request.
+     */
+    public enum Result {
+        /** Login or registration was successful */
+        OK,
+        /** CommonSense refused the credentials, or the user already exists */
+        REJECTED,
+        /** The request failed, possibly because of connection problems */
+        FAILED,
+        /** No result was received within the timeout */
+        TIMEOUT,
+        /** The request was cancelled */
+        CANCELLED
+    }
+
+    /**
+     * A single login or registration attempt.
+     */
+    private abstract class Request extends ISenseServiceCallback.Stub implements Runnable {
+
+        final ISenseService service;
+        Future<?> future;
+
+        Request(ISenseService service) {
+            this.service = service;
+        }
+
+        @Override
+        public void onChangeLoginResult(int result) throws RemoteException {
+            // not used
+        }
+
+        @Override
+        public void onRegisterResult(int result) throws RemoteException {
+            // not used
+        }
+
+        @Override
+        public void run() {
+            try {
+                send();
+                publish(this, Progress.WAITING);
+            } catch (RemoteException e) {
+                Log.e(TAG, "Failed to send request to Sense service: '" + e + "'");
+                finish(this, Result.FAILED);
+            }
+        }
+
+        /**
+         * Sends the request to the service. Runs on the background thread.
+         */
+        abstract void send() throws RemoteException;
+
+        @Override
+        public void statusReport(int status) throws RemoteException {
+            // not used
+        }
+    }
+
+    /**
+     * Runs each request on its own pooled thread. A remote call that is already in flight cannot
+     * be interrupted, so a stuck request must not block the requests that are submitted after it.
+     */
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool();
+    private static final String TAG = "AuthPipeline";
+
+    private static Result toResult(int code) {
+        switch (code) {
+        case -2:
+            return Result.REJECTED;
+        case -1:
+            return Result.FAILED;
+        default:
+            return Result.OK;
+        }
+    }
+
+    private Request current;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Listener listener;
+    private final long timeout;
+    private final Runnable timeoutTask = new Runnable() {
+
+        @Override
+        public void run() {
+            Log.w(TAG, "No result from Sense service within " + timeout + " ms");
+            complete(current, Result.TIMEOUT);
+        }
+    };
+
+    /**
+     * @param listener
+     *            Listener for progress and results
+     * @param timeout
+     *            Time to wait for the result of a request, in ms
+     */
+    public AuthPipeline(Listener listener, long timeout) {
+        this.listener = listener;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Cancels the running request, if any. The listener is notified with
+     * {@link Result#CANCELLED} before this method returns. Must be called from the main thread.
+     */
+    public void cancel() {
+        complete(current, Result.CANCELLED);
+    }
+
+    /**
+     * Completes a request with a result, unless it is no longer the current request. Must be
+     * called from the main thread.
+     */
+    private void complete(Request request, Result result) {
+        if (null == request || request != current) {
+            // request was already finished
+            return;
+        }
+        current = null;
+        handler.removeCallbacks(timeoutTask);
+        if (null != request.future) {
+            request.future.cancel(true);
+        }
+        listener.onAuthResult(result);
+    }
+
+    /**
+     * Finishes a request with a result from any thread.
+     */
+    private void finish(final Request request, final Result result) {
+        handler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                complete(request, result);
+            }
+        });
+    }
+
+    /**
+     * Submits a login request. Must be called from the main thread.
+     *
+     * @param service
+     *            The bound Sense service
+     * @param username
+     *            Username
+     * @param password
+     *            Plain text password, is hashed before it is sent
+     */
+    public void login(ISenseService service, final String username, final String password) {
+        submit(new Request(service) {
+
+            @Override
+            public void onChangeLoginResult(int result) {
+                Log.d(TAG, "Change login result: " + result);
+                finish(this, toResult(result));
+            }
+
+            @Override
+            void send() throws RemoteException {
+                publish(this, Progress.HASHING);
+                String hashed = SenseApi.hashPassword(password);
+                publish(this, Progress.SENDING);
+                service.changeLogin(username, hashed, this);
+            }
+        });
+    }
+
+    /**
+     * Publishes progress of a request, unless it is no longer the current request.
+     */
+    private void publish(final Request request, final Progress progress) {
+        handler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                if (request == current) {
+                    listener.onAuthProgress(progress);
+                }
+            }
+        });
+    }
+
+    /**
+     * Submits a registration request. Must be called from the main thread.
+     */
+    public void register(ISenseService service, final String username, final String password,
+            final String email, final String address, final String zipCode, final String country,
+            final String name, final String surname, final String phone) {
+        submit(new Request(service) {
+
+            @Override
+            public void onRegisterResult(int result) {
+                Log.d(TAG, "Registration result: " + result);
+                finish(this, toResult(result));
+            }
+
+            @Override
+            void send() throws RemoteException {
+                publish(this, Progress.SENDING);
+                service.register(username, password, email, address, zipCode, country, name,
+                        surname, phone, this);
+            }
+        });
+    }
+
+    private void submit(Request request) {
+        if (null != current) {
+            Log.w(TAG, "New request submitted, cancelling the previous one");
+            cancel();
+        }
+
+        current = request;
+        if (null == request.service) {
+            // report the failure like any other result, after the caller has returned
+            Log.w(TAG, "Cannot submit request: Sense service is not bound");
+            finish(request, Result.FAILED);
+            return;
+        }
+
+        handler.postDelayed(timeoutTask, timeout);
+        request.future = EXECUTOR.submit(request);
+    }
+}
@@ -0,0 +1,222 @@
+package nl.sense_os.app.diagnostics;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import nl.sense_os.service.ISenseService;
+import android.os.SystemClock;
+
+/**
+ * Always-on timing of the interaction between the app and the Sense service. Collects a
+ * {@link LatencyHistogram} per measured operation:
+ * <ul>
+ * <li><code>bind</code>: time between binding and the connection of the service</li>
+ * <li><code>ipc.&lt;method&gt;</code>: round-trip time of each call to {@link ISenseService}</li>
+ * <li><code>startup.cold</code> and <code>startup.warm</code>: time from the creation of the main
+ * screen to the first status that it shows, for the first and later screens of the process</li>
+ * </ul>
+ * The histograms only live in memory. They are shown in the diagnostics screen, and can be
+ * exported to a file to compare builds.
+ */
+public class Diagnostics {
+
+    /**
+     * Invocation handler that times the remote calls to the wrapped service. Methods that do not
+     * make a remote call, like {@link ISenseService#asBinder()} and the methods of {@link Object},
+     * are not timed.
+     */
+    private static class TimingHandler implements InvocationHandler {
+
+        private final ISenseService service;
+
+        TimingHandler(ISenseService service) {
+            this.service = service;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                // identity of the proxy itself, not a remote call
+                String name = method.getName();
+                if ("equals".equals(name)) {
+                    return proxy == args[0];
+                } else if ("hashCode".equals(name)) {
+                    return System.identityHashCode(proxy);
+                } else {
+                    return "Timed " + service;
+                }
+            }
+            if (method.getDeclaringClass() != ISenseService.class) {
+                // e.g. asBinder(), which is a local call
+                try {
+                    return method.invoke(service, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+
+            LatencyHistogram histogram = IPC_HISTOGRAMS.get(method);
+            if (null == histogram) {
+                histogram = get("ipc." + method.getName());
+                IPC_HISTOGRAMS.put(method, histogram);
+            }
+
+            long start = System.nanoTime();
+            try {
+                return method.invoke(service, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            } finally {
+                histogram.record(System.nanoTime() - start);
+            }
+        }
+    }
+
+    private static final ConcurrentHashMap<String, LatencyHistogram> HISTOGRAMS = new ConcurrentHashMap<String, LatencyHistogram>();
+    private static final ConcurrentHashMap<Method, LatencyHistogram> IPC_HISTOGRAMS = new ConcurrentHashMap<Method, LatencyHistogram>();
+    private static boolean isColdStart = true;
+    private static long startupBegin;
+
+    /**
+     * Exports all histograms to a CSV file, with one line per histogram. Each line contains the
+     * name, count, mean, median, 90th and 99th percentile, maximum (all in us) and the bucket
+     * counts.
+     *
+     * @param file
+     *            File to write to
+     * @param version
+     *            Version of the app, written in the header so exports of different builds can be
+     *            told apart
+     * @throws IOException
+     */
+    public static void export(File file, String version) throws IOException {
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write("# Sense diagnostics, version " + version + ", uptime "
+                    + SystemClock.elapsedRealtime() + " ms\n");
+            writer.write("name,count,mean_us,p50_us,p90_us,p99_us,max_us");
+            for (int i = 0; i < LatencyHistogram.BUCKETS - 1; i++) {
+                writer.write(",lt_" + (1L << i) + "us");
+            }
+            // the last bucket has no upper bound
+            writer.write(",ge_" + (1L << (LatencyHistogram.BUCKETS - 2)) + "us");
+            writer.write('\n');
+            for (LatencyHistogram histogram : getAll()) {
+                writer.write(histogram.getName() + "," + histogram.getCount() + ","
+                        + histogram.getMean() + "," + histogram.getPercentile(50) + ","
+                        + histogram.getPercentile(90) + "," + histogram.getPercentile(99) + ","
+                        + histogram.getMax());
+                for (long bucket : histogram.getBuckets()) {
+                    writer.write("," + bucket);
+                }
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * @param name
+     *            Name of the measured operation
+     * @return The histogram for the operation, created if it did not exist yet
+     */
+    public static LatencyHistogram get(String name) {
+        LatencyHistogram histogram = HISTOGRAMS.get(name);
+        if (null == histogram) {
+            histogram = new LatencyHistogram(name);
+            LatencyHistogram existing = HISTOGRAMS.putIfAbsent(name, histogram);
+            if (null != existing) {
+                histogram = existing;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * @return All histograms, sorted by name
+     */
+    public static List<LatencyHistogram> getAll() {
+        List<LatencyHistogram> all = new ArrayList<LatencyHistogram>(HISTOGRAMS.values());
+        Collections.sort(all, new Comparator<LatencyHistogram>() {
+
+            @Override
+            public int compare(LatencyHistogram lhs, LatencyHistogram rhs) {
+                return lhs.getName().compareTo(rhs.getName());
+            }
+        });
+        return all;
+    }
+
+    /**
+     * Wraps a service so that the round-trip time of every call is recorded.
+     *
+     * @param service
+     *            The bound Sense service
+     * @return Service that times its calls, or <code>null</code> if the service was
+     *         <code>null</code>
+     */
+    public static ISenseService instrument(ISenseService service) {
+        if (null == service) {
+            return null;
+        }
+        return (ISenseService) Proxy.newProxyInstance(ISenseService.class.getClassLoader(),
+                new Class<?>[] { ISenseService.class }, new TimingHandler(service));
+    }
+
+    /**
+     * Records a duration.
+     *
+     * @param name
+     *            Name of the measured operation
+     * @param nanos
+     *            Duration in ns
+     */
+    public static void record(String name, long nanos) {
+        get(name).record(nanos);
+    }
+
+    /**
+     * Clears all recorded durations.
+     */
+    public static void reset() {
+        for (LatencyHistogram histogram : HISTOGRAMS.values()) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Marks the creation of the main screen. Must be called from the main thread.
+     */
+    public static void startupBegin() {
+        startupBegin = System.nanoTime();
+    }
+
+    /**
+     * Marks that the main screen shows the service status. Only the first call after
+     * {@link #startupBegin()} is recorded. Must be called from the main thread.
+     */
+    public static void startupEnd() {
+        if (startupBegin == 0) {
+            return;
+        }
+        record(isColdStart ? "startup.cold" : "startup.warm", System.nanoTime() - startupBegin);
+        isColdStart = false;
+        startupBegin = 0;
+    }
+
+    private Diagnostics() {
+        // class should not be instantiated
+    }
+}
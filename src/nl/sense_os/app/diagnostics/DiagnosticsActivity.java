@@ -0,0 +1,119 @@
+package nl.sense_os.app.diagnostics;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import nl.sense_os.app.R;
+import nl.sense_os.app.SenseServiceHolder;
+import android.app.Activity;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.os.Bundle;
+import android.os.Environment;
+import android.text.format.DateFormat;
+import android.util.Log;
+import android.view.View;
+import android.widget.TextView;
+import android.widget.Toast;
+
+/**
+ * Developer screen that shows the latencies recorded by {@link Diagnostics}, and exports them to
+ * a CSV file on the external storage. Only reachable from the main menu in developer mode.
+ */
+public class DiagnosticsActivity extends Activity {
+
+    private static final String TAG = "DiagnosticsActivity";
+
+    /**
+     * @param micros
+     *            Duration in us
+     * @return The duration in us or ms, whichever is more readable
+     */
+    private static String format(long micros) {
+        return micros < 10000 ? micros + "us" : (micros / 1000) + "ms";
+    }
+
+    private void export() {
+        String version = "unknown";
+        try {
+            version = getPackageManager().getPackageInfo(getPackageName(), 0).versionName;
+        } catch (NameNotFoundException e) {
+            // should not happen for our own package
+        }
+
+        File dir = new File(Environment.getExternalStorageDirectory(), "sense");
+        String name = "diagnostics_" + version + "_"
+                + DateFormat.format("yyyyMMdd_kkmmss", System.currentTimeMillis()) + ".csv";
+        File file = new File(dir, name);
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create directory " + dir);
+            }
+            Diagnostics.export(file, version);
+            String msg = getString(R.string.toast_diag_exported).replace("?", file.getPath());
+            Toast.makeText(this, msg, Toast.LENGTH_LONG).show();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to export diagnostics: " + e);
+            Toast.makeText(this, R.string.toast_diag_export_failed, Toast.LENGTH_LONG).show();
+        }
+    }
+
+    /**
+     * Handles clicks on the buttons.
+     *
+     * @param v
+     *            the View that was clicked.
+     */
+    public void onClick(View v) {
+        if (v.getId() == R.id.diag_export) {
+            export();
+        } else if (v.getId() == R.id.diag_reset) {
+            Diagnostics.reset();
+            showReport();
+        } else {
+            Log.e(TAG, "Unknown button pressed!");
+        }
+    }
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.diagnostics);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        showReport();
+    }
+
+    private void showReport() {
+        List<LatencyHistogram> histograms = Diagnostics.getAll();
+        StringBuilder report = new StringBuilder();
+        boolean isEmpty = true;
+        for (LatencyHistogram histogram : histograms) {
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            isEmpty = false;
+            report.append(histogram.getName()).append('\n');
+            report.append("  n=").append(histogram.getCount());
+            report.append(" mean=").append(format(histogram.getMean()));
+            report.append(" p50=").append(format(histogram.getPercentile(50)));
+            report.append(" p99=").append(format(histogram.getPercentile(99)));
+            report.append(" max=").append(format(histogram.getMax())).append('\n');
+        }
+
+        TextView view = (TextView) findViewById(R.id.diag_report);
+        if (isEmpty) {
+            view.setText(R.string.diag_empty);
+            return;
+        }
+
+        SenseServiceHolder holder = SenseServiceHolder.getInstance(this);
+        report.append("\nbinds=").append(holder.getBindCount());
+        report.append(" avoided=").append(holder.getAvoidedBindCount());
+        report.append(" last=").append(holder.getLastBindTime()).append("ms");
+        view.setText(report);
+    }
+}
@@ -0,0 +1,122 @@
+package nl.sense_os.app.diagnostics;
+
+/**
+ * Histogram of durations with logarithmic buckets. Bucket <code>i</code> counts the durations of
+ * less than 2<sup>i</sup> microseconds that did not fit in the previous bucket, so recording a
+ * value only takes a few instructions and the histogram has a fixed size, no matter how many
+ * values are recorded. Percentiles are reported as the upper bound of the bucket they fall in.<br/>
+ * <br/>
+ * Thread-safe.
+ */
+public class LatencyHistogram {
+
+    /**
+     * Number of buckets. The last bucket holds every duration of 2<sup>30</sup> us (about 18
+     * minutes) and longer.
+     */
+    public static final int BUCKETS = 32;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long max;
+    private final String name;
+    private long total;
+
+    /**
+     * @param name
+     *            Name of the measured operation
+     */
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return Number of recorded durations
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * @return Longest recorded duration in us
+     */
+    public synchronized long getMax() {
+        return max;
+    }
+
+    /**
+     * @return Average of the recorded durations in us, or 0 if nothing was recorded
+     */
+    public synchronized long getMean() {
+        return count > 0 ? total / count : 0;
+    }
+
+    /**
+     * @return Name of the measured operation
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param percentile
+     *            Percentile between 0 and 100
+     * @return Upper bound of the bucket that contains the percentile in us, or 0 if nothing was
+     *         recorded
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100d);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(1L << i, max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @return Copy of the bucket counts
+     */
+    public synchronized long[] getBuckets() {
+        return counts.clone();
+    }
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos
+     *            Duration in ns
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+
+        // index of the highest bit + 1, i.e. the smallest i for which micros < 2^i
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+
+        synchronized (this) {
+            counts[bucket]++;
+            count++;
+            total += micros;
+            if (micros > max) {
+                max = micros;
+            }
+        }
+    }
+
+    /**
+     * Clears all recorded durations.
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = 0;
+        }
+        count = 0;
+        max = 0;
+        total = 0;
+    }
+}
@@ -3,11 +3,21 @@ package nl.sense_os.app.dialogs;
 import nl.sense_os.app.R;
 import android.app.Dialog;
 import android.app.ProgressDialog;
+import android.content.DialogInterface;
 import android.os.Bundle;
 import android.support.v4.app.DialogFragment;
 
 public class WaitDialog extends DialogFragment {
 
+    public static interface IWaitActivity {
+
+        /**
+         * Called when the user cancels the wait dialog, e.g. to stop the operation that is being
+         * waited for
+         */
+        void onWaitCancel();
+    }
+
     public static WaitDialog newInstance(int msg) {
         Bundle args = new Bundle();
         args.putInt("msg", msg);
@@ -16,6 +26,15 @@ public class WaitDialog extends DialogFragment {
         return dialog;
     }
 
+    @Override
+    public void onCancel(DialogInterface dialog) {
+        super.onCancel(dialog);
+        // look up the activity every time, it may have been recreated since the dialog was shown
+        if (getActivity() instanceof IWaitActivity) {
+            ((IWaitActivity) getActivity()).onWaitCancel();
+        }
+    }
+
     @Override
     public Dialog onCreateDialog(Bundle savedInstanceState) {
 
@@ -25,7 +44,7 @@ public class WaitDialog extends DialogFragment {
         Dialog dialog = new ProgressDialog(getActivity());
         dialog.setTitle(R.string.dialog_progress_title);
         ((ProgressDialog) dialog).setMessage(getString(msg));
-        dialog.setCancelable(false);
+        dialog.setCancelable(true);
         return dialog;
     }
 }
@@ -1,100 +1,45 @@
 package nl.sense_os.app.login;
 
 import nl.sense_os.app.R;
+import nl.sense_os.app.SenseServiceHolder;
+import nl.sense_os.app.SenseServiceHolder.ConnectionListener;
 import nl.sense_os.app.SenseSettings;
+import nl.sense_os.app.auth.AuthPipeline;
 import nl.sense_os.app.dialogs.WaitDialog;
+import nl.sense_os.app.dialogs.WaitDialog.IWaitActivity;
 import nl.sense_os.app.login.LoginDialog.ILoginActivity;
 import nl.sense_os.service.ISenseService;
-import nl.sense_os.service.ISenseServiceCallback;
-import nl.sense_os.service.commonsense.SenseApi;
-import android.content.ComponentName;
-import android.content.Intent;
-import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 import android.os.Bundle;
-import android.os.IBinder;
 import android.os.RemoteException;
 import android.preference.PreferenceManager;
 import android.support.v4.app.FragmentActivity;
 import android.util.Log;
 import android.widget.Toast;
 
-public class LoginActivity extends FragmentActivity implements ILoginActivity {
+public class LoginActivity extends FragmentActivity implements ILoginActivity,
+        IWaitActivity, AuthPipeline.Listener {
 
-    private class SenseCallback extends ISenseServiceCallback.Stub {
+    private class SenseServiceConn implements ConnectionListener {
 
         @Override
-        public void onChangeLoginResult(int result) throws RemoteException {
-            Log.d(TAG, "Change login result: " + result);
-
-            if (null != waitDialog) {
-                try {
-                    waitDialog.dismiss();
-                } catch (final IllegalArgumentException e) {
-                    // do nothing, perhaps the progress dialog was already dismissed
-                }
-            }
-
-            if (result == -2) {
-                showToast(getString(R.string.toast_login_forbidden), Toast.LENGTH_LONG);
-                runOnUiThread(new Runnable() {
-
-                    @Override
-                    public void run() {
-                        showLoginDialog();
-                    }
-                });
-
-            } else if (result == -1) {
-                showToast(getString(R.string.toast_login_fail), Toast.LENGTH_LONG);
-                runOnUiThread(new Runnable() {
-
-                    @Override
-                    public void run() {
-                        showLoginDialog();
-                    }
-                });
-
-            } else {
-                showToast(getString(R.string.toast_login_ok), Toast.LENGTH_LONG);
-
-                onLoginSuccess();
-            }
-        }
-
-        @Override
-        public void onRegisterResult(int result) throws RemoteException {
-            // not used
+        public void onServiceConnected(ISenseService binder) {
+            service = binder;
         }
 
         @Override
-        public void statusReport(int status) throws RemoteException {
-            // not used
-        }
-    }
-
-    private class SenseServiceConn implements ServiceConnection {
-
-        @Override
-        public void onServiceConnected(ComponentName name, IBinder binder) {
-            service = ISenseService.Stub.asInterface(binder);
-        }
-
-        @Override
-        public void onServiceDisconnected(ComponentName name) {
-            /* this is not called when the service is stopped, only when it is suddenly killed! */
+        public void onServiceDisconnected() {
             service = null;
-            isServiceBound = false;
         }
     };
 
     private static final String TAG = "LoginActivity";
 
-    private final ISenseServiceCallback callback = new SenseCallback();
+    private AuthPipeline authPipeline;
     private boolean isServiceBound;
     private ISenseService service;
-    private final ServiceConnection serviceConn = new SenseServiceConn();
+    private final SenseServiceConn serviceConn = new SenseServiceConn();
 
     private WaitDialog waitDialog;
 
@@ -106,8 +51,10 @@ public class LoginActivity extends FragmentActivity implements ILoginActivity {
         // start the service if it was not running already
         if (!isServiceBound) {
             // Log.v(TAG, "Try to bind to Sense Platform service");
-            final Intent serviceIntent = new Intent(getString(R.string.action_sense_service));
-            isServiceBound = bindService(serviceIntent, serviceConn, BIND_AUTO_CREATE);
+            SenseServiceHolder holder = SenseServiceHolder.getInstance(this);
+            holder.acquire(true);
+            holder.addListener(serviceConn);
+            isServiceBound = true;
         } else {
             // already bound
         }
@@ -125,9 +72,57 @@ public class LoginActivity extends FragmentActivity implements ILoginActivity {
 
         setResult(RESULT_CANCELED);
 
+        authPipeline = new AuthPipeline(this, getResources().getInteger(R.integer.auth_timeout));
+
         showLoginDialog();
     }
 
+    @Override
+    protected void onDestroy() {
+        authPipeline.cancel();
+        super.onDestroy();
+    }
+
+    @Override
+    public void onAuthProgress(AuthPipeline.Progress progress) {
+        Log.v(TAG, "Login progress: " + progress);
+    }
+
+    @Override
+    public void onAuthResult(AuthPipeline.Result result) {
+
+        if (result == AuthPipeline.Result.CANCELLED) {
+            // the wait dialog is already gone, or the activity is being destroyed
+            return;
+        }
+
+        if (null != waitDialog) {
+            try {
+                waitDialog.dismiss();
+            } catch (final IllegalArgumentException e) {
+                // do nothing, perhaps the progress dialog was already dismissed
+            }
+        }
+
+        switch (result) {
+        case OK:
+            showToast(getString(R.string.toast_login_ok), Toast.LENGTH_LONG);
+            onLoginSuccess();
+            break;
+        case REJECTED:
+            showToast(getString(R.string.toast_login_forbidden), Toast.LENGTH_LONG);
+            showLoginDialog();
+            break;
+        case TIMEOUT:
+            showToast(getString(R.string.toast_login_timeout), Toast.LENGTH_LONG);
+            showLoginDialog();
+            break;
+        default:
+            showToast(getString(R.string.toast_login_fail), Toast.LENGTH_LONG);
+            showLoginDialog();
+        }
+    }
+
     private void onLoginSuccess() {
         try {
             service.toggleMain(true);
@@ -164,12 +159,18 @@ public class LoginActivity extends FragmentActivity implements ILoginActivity {
         super.onStop();
     }
 
+    @Override
+    public void onWaitCancel() {
+        authPipeline.cancel();
+        showLoginDialog();
+    }
+
     @Override
     public void onSubmit(String username, String password) {
         if ((null != username) && (null != password) && (username.length() > 0)
                 && (password.length() > 0)) {
-            submit(username, password);
             showWaitDialog();
+            submit(username, password);
 
         } else {
             onWrongInput();
@@ -202,12 +203,7 @@ public class LoginActivity extends FragmentActivity implements ILoginActivity {
     }
 
     private void submit(String username, String password) {
-        try {
-            service.changeLogin(username, SenseApi.hashPassword(password), callback);
-        } catch (RemoteException e) {
-            Log.e(TAG, "Failed to call changeLogin: '" + e + "'");
-            finish();
-        }
+        authPipeline.login(service, username, password);
     }
 
     /**
@@ -215,9 +211,11 @@ public class LoginActivity extends FragmentActivity implements ILoginActivity {
      */
     private void unbindFromSenseService() {
 
-        if ((true == isServiceBound) && (null != serviceConn)) {
+        if (true == isServiceBound) {
             // Log.v(TAG, "Unbind from Sense Platform service");
-            unbindService(serviceConn);
+            SenseServiceHolder holder = SenseServiceHolder.getInstance(this);
+            holder.removeListener(serviceConn);
+            holder.release();
         } else {
             // already unbound
         }
@@ -0,0 +1,273 @@
+package nl.sense_os.app.prefs;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import nl.sense_os.service.ISenseService;
+import nl.sense_os.service.constants.SensePrefs;
+import nl.sense_os.service.constants.SensePrefs.Main.Advanced;
+import nl.sense_os.service.constants.SensePrefs.Main.Ambience;
+import nl.sense_os.service.constants.SensePrefs.Main.DevProx;
+import nl.sense_os.service.constants.SensePrefs.Main.External.MyGlucoHealth;
+import nl.sense_os.service.constants.SensePrefs.Main.External.OBD2Sensor;
+import nl.sense_os.service.constants.SensePrefs.Main.External.TanitaScale;
+import nl.sense_os.service.constants.SensePrefs.Main.External.ZephyrBioHarness;
+import nl.sense_os.service.constants.SensePrefs.Main.External.ZephyrHxM;
+import nl.sense_os.service.constants.SensePrefs.Main.Location;
+import nl.sense_os.service.constants.SensePrefs.Main.Motion;
+import nl.sense_os.service.constants.SensePrefs.Main.PhoneState;
+import nl.sense_os.service.constants.SensePrefs.Main.Quiz;
+import nl.sense_os.service.constants.SensePrefs.Status;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+import android.os.Bundle;
+import android.os.RemoteException;
+
+/**
+ * Registry of the Sense Platform preferences that are shown in the settings screen, with their
+ * type and default value. Used to copy all preferences from the Sense service in one go, and to
+ * send changed preferences back to the service in batches.
+ */
+public class PrefRegistry {
+
+    /**
+     * Type of the value that is stored for a preference key.
+     */
+    public enum Type {
+        BOOLEAN, STRING
+    }
+
+    private static class Entry {
+        final String key;
+        final Type type;
+        final Object defValue;
+
+        Entry(String key, Type type, Object defValue) {
+            this.key = key;
+            this.type = type;
+            this.defValue = defValue;
+        }
+    }
+
+    private static final Entry[] ENTRIES = {
+            // general preferences
+            str(SensePrefs.Main.SAMPLE_RATE, "0"),
+            str(SensePrefs.Main.SYNC_RATE, "0"),
+            bool(Status.AUTOSTART, false),
+
+            // phone state preferences
+            bool(PhoneState.BATTERY, true),
+            bool(PhoneState.CALL_STATE, true),
+            bool(PhoneState.SCREEN_ACTIVITY, true),
+            bool(PhoneState.PROXIMITY, true),
+            bool(PhoneState.DATA_CONNECTION, true),
+            bool(PhoneState.SERVICE_STATE, true),
+            bool(PhoneState.SIGNAL_STRENGTH, true),
+            bool(PhoneState.IP_ADDRESS, true),
+            bool(PhoneState.UNREAD_MSG, true),
+
+            // location preferences
+            bool(Location.GPS, true),
+            bool(Location.NETWORK, true),
+            bool(Location.AUTO_GPS, true),
+
+            // ambience preferences
+            bool(Ambience.LIGHT, true),
+            bool(Ambience.MIC, true),
+            bool(Ambience.PRESSURE, true),
+            bool(Ambience.CAMERA_LIGHT, true),
+            bool(Ambience.AUDIO_SPECTRUM, true),
+
+            // motion preferences
+            bool(Motion.FALL_DETECT, false),
+            bool(Motion.FALL_DETECT_DEMO, false),
+            bool(Motion.UNREG, true),
+            bool(Motion.SCREENOFF_FIX, false),
+
+            // neighboring devices
+            bool(DevProx.BLUETOOTH, true),
+            bool(DevProx.WIFI, true),
+            bool(DevProx.NFC, true),
+
+            // pop quiz preferences
+            str(Quiz.RATE, "0"),
+            bool(Quiz.SILENT_MODE, false),
+
+            // Zephir BioHarness preferences
+            bool(ZephyrBioHarness.MAIN, false),
+            bool(ZephyrBioHarness.ACC, true),
+            bool(ZephyrBioHarness.BATTERY, true),
+            bool(ZephyrBioHarness.HEART_RATE, true),
+            bool(ZephyrBioHarness.RESP, true),
+            bool(ZephyrBioHarness.TEMP, true),
+            bool(ZephyrBioHarness.WORN_STATUS, true),
+
+            // Zephir HxM preferences
+            bool(ZephyrHxM.MAIN, false),
+            bool(ZephyrHxM.BATTERY, true),
+            bool(ZephyrHxM.DISTANCE, true),
+            bool(ZephyrHxM.HEART_RATE, true),
+            bool(ZephyrHxM.SPEED, true),
+            bool(ZephyrHxM.STRIDES, true),
+
+            // other external sensors
+            bool(MyGlucoHealth.MAIN, false),
+            bool(TanitaScale.MAIN, false),
+            bool(OBD2Sensor.MAIN, false),
+
+            // advanced settings
+            bool(Advanced.DEV_MODE, false),
+            bool(Advanced.COMPRESS, true),
+            bool(Advanced.USE_COMMONSENSE, true),
+            bool(Advanced.AGOSTINO, false),
+            bool(Motion.EPIMODE, false),
+            bool(Advanced.LOCATION_FEEDBACK, false) };
+
+    private static final Map<String, Entry> BY_KEY = new HashMap<String, Entry>();
+
+    static {
+        for (Entry entry : ENTRIES) {
+            BY_KEY.put(entry.key, entry);
+        }
+    }
+
+    private static Entry bool(String key, boolean defValue) {
+        return new Entry(key, Type.BOOLEAN, defValue);
+    }
+
+    private static Entry str(String key, String defValue) {
+        return new Entry(key, Type.STRING, defValue);
+    }
+
+    /**
+     * Copies the values from a snapshot into a preference editor. Keys that are missing from the
+     * snapshot are left untouched.
+     *
+     * @param snapshot
+     *            Bundle with preference values, as returned by {@link #snapshot(ISenseService)}
+     * @param editor
+     *            Editor to put the values in. The caller is responsible for committing it.
+     */
+    public static void apply(Bundle snapshot, Editor editor) {
+        for (Entry entry : ENTRIES) {
+            if (!snapshot.containsKey(entry.key)) {
+                continue;
+            }
+            switch (entry.type) {
+            case BOOLEAN:
+                editor.putBoolean(entry.key, snapshot.getBoolean(entry.key));
+                break;
+            case STRING:
+                editor.putString(entry.key, snapshot.getString(entry.key));
+                break;
+            }
+        }
+    }
+
+    /**
+     * Reads the current value of a preference and puts it in a batch of changes. Registered keys
+     * are read with their known type. Other keys, and registered keys that hold a value of another
+     * type, are copied based on the type of their stored value.
+     *
+     * @param prefs
+     *            SharedPreferences that contain the changed value
+     * @param key
+     *            Key of the changed preference
+     * @param changes
+     *            Bundle with the batch of changes to add the value to
+     * @return <code>true</code> if the value was added to the batch
+     */
+    public static boolean read(SharedPreferences prefs, String key, Bundle changes) {
+        Entry entry = BY_KEY.get(key);
+        if (null != entry) {
+            try {
+                switch (entry.type) {
+                case BOOLEAN:
+                    changes.putBoolean(key, prefs.getBoolean(key, (Boolean) entry.defValue));
+                    return true;
+                case STRING:
+                    changes.putString(key, prefs.getString(key, (String) entry.defValue));
+                    return true;
+                }
+            } catch (ClassCastException e) {
+                // stored value has a different type than registered, copy it as it is
+            }
+        }
+
+        Object value = prefs.getAll().get(key);
+        if (value instanceof String) {
+            changes.putString(key, (String) value);
+        } else if (value instanceof Boolean) {
+            changes.putBoolean(key, (Boolean) value);
+        } else if (value instanceof Float) {
+            changes.putFloat(key, (Float) value);
+        } else if (value instanceof Integer) {
+            changes.putInt(key, (Integer) value);
+        } else if (value instanceof Long) {
+            changes.putLong(key, (Long) value);
+        } else {
+            // preference was removed, or has a type that the service does not support
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sends a batch of changed preferences to the Sense service.
+     *
+     * @param service
+     *            Bound Sense service
+     * @param changes
+     *            Bundle with changed preferences, as collected by
+     *            {@link #read(SharedPreferences, String, Bundle)}
+     * @throws RemoteException
+     */
+    public static void send(ISenseService service, Bundle changes) throws RemoteException {
+        for (String key : changes.keySet()) {
+            Object value = changes.get(key);
+            if (value instanceof String) {
+                service.setPrefString(key, (String) value);
+            } else if (value instanceof Boolean) {
+                service.setPrefBool(key, (Boolean) value);
+            } else if (value instanceof Float) {
+                service.setPrefFloat(key, (Float) value);
+            } else if (value instanceof Integer) {
+                service.setPrefInt(key, (Integer) value);
+            } else if (value instanceof Long) {
+                service.setPrefLong(key, (Long) value);
+            }
+        }
+    }
+
+    /**
+     * Gets the current value of every registered preference from the Sense service. This is the
+     * single place where the settings screen reads preferences from the service, so it can switch
+     * to a bulk getter as soon as {@link ISenseService} offers one. Do not call this on the UI
+     * thread: it makes a remote call for every key.
+     *
+     * @param service
+     *            Bound Sense service
+     * @return Bundle with the value for each registered key
+     * @throws RemoteException
+     */
+    public static Bundle snapshot(ISenseService service) throws RemoteException {
+        Bundle snapshot = new Bundle(ENTRIES.length);
+        for (Entry entry : ENTRIES) {
+            switch (entry.type) {
+            case BOOLEAN:
+                snapshot.putBoolean(entry.key,
+                        service.getPrefBool(entry.key, (Boolean) entry.defValue));
+                break;
+            case STRING:
+                snapshot.putString(entry.key,
+                        service.getPrefString(entry.key, (String) entry.defValue));
+                break;
+            }
+        }
+        return snapshot;
+    }
+
+    private PrefRegistry() {
+        // class should not be instantiated
+    }
+}
@@ -1,97 +1,45 @@
 package nl.sense_os.app.register;
 
 import nl.sense_os.app.R;
+import nl.sense_os.app.SenseServiceHolder;
+import nl.sense_os.app.SenseServiceHolder.ConnectionListener;
 import nl.sense_os.app.SenseSettings;
+import nl.sense_os.app.auth.AuthPipeline;
 import nl.sense_os.app.dialogs.WaitDialog;
+import nl.sense_os.app.dialogs.WaitDialog.IWaitActivity;
 import nl.sense_os.app.register.RegisterDialog.IRegisterActivity;
 import nl.sense_os.service.ISenseService;
-import nl.sense_os.service.ISenseServiceCallback;
-import android.content.ComponentName;
-import android.content.Intent;
-import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 import android.os.Bundle;
-import android.os.IBinder;
 import android.os.RemoteException;
 import android.preference.PreferenceManager;
 import android.support.v4.app.FragmentActivity;
 import android.util.Log;
 import android.widget.Toast;
 
-public class RegisterActivity extends FragmentActivity implements IRegisterActivity {
+public class RegisterActivity extends FragmentActivity implements IRegisterActivity,
+	IWaitActivity, AuthPipeline.Listener {
 
-    private class SenseCallback extends ISenseServiceCallback.Stub {
+    private class SenseServiceConn implements ConnectionListener {
 
 	@Override
-	public void onChangeLoginResult(int result) throws RemoteException {
-	    // not used
+	public void onServiceConnected(ISenseService binder) {
+	    service = binder;
 	}
 
 	@Override
-	public void onRegisterResult(int result) throws RemoteException {
-	    Log.d(TAG, "Registration result: " + result);
-
-	    if (null != waitDialog) {
-		try {
-		    waitDialog.dismiss();
-		} catch (final IllegalArgumentException e) {
-		    // do nothing
-		}
-	    }
-
-	    if (result == -2) {
-		showToast(getString(R.string.toast_reg_conflict), Toast.LENGTH_LONG);
-		runOnUiThread(new Runnable() {
-
-		    @Override
-		    public void run() {
-			showRegisterDialog();
-		    }
-		});
-	    } else if (result == -1) {
-		showToast(getString(R.string.toast_reg_fail), Toast.LENGTH_LONG);
-		runOnUiThread(new Runnable() {
-
-		    @Override
-		    public void run() {
-			showRegisterDialog();
-		    }
-		});
-	    } else {
-		showToast(getString(R.string.toast_reg_ok), Toast.LENGTH_LONG);
-
-		onRegisterSuccess();
-	    }
-	}
-
-	@Override
-	public void statusReport(int status) throws RemoteException {
-	    // not used
-	}
-    }
-
-    private class SenseServiceConn implements ServiceConnection {
-
-	@Override
-	public void onServiceConnected(ComponentName name, IBinder binder) {
-	    service = ISenseService.Stub.asInterface(binder);
-	}
-
-	@Override
-	public void onServiceDisconnected(ComponentName name) {
-	    /* this is not called when the service is stopped, only when it is suddenly killed! */
+	public void onServiceDisconnected() {
 	    service = null;
-	    isServiceBound = false;
 	}
     };
 
     private static final String TAG = "RegisterActivity";
 
-    private final ISenseServiceCallback callback = new SenseCallback();
+    private AuthPipeline authPipeline;
     private boolean isServiceBound;
     private ISenseService service;
-    private final ServiceConnection serviceConn = new SenseServiceConn();
+    private final SenseServiceConn serviceConn = new SenseServiceConn();
     private WaitDialog waitDialog;
 
     /**
@@ -102,8 +50,10 @@ public class RegisterActivity extends FragmentActivity implements IRegisterActiv
 	// start the service if it was not running already
 	if (!isServiceBound) {
 	    // Log.v(TAG, "Try to bind to Sense Platform service");
-	    final Intent serviceIntent = new Intent(getString(R.string.action_sense_service));
-	    isServiceBound = bindService(serviceIntent, serviceConn, BIND_AUTO_CREATE);
+	    SenseServiceHolder holder = SenseServiceHolder.getInstance(this);
+	    holder.acquire(true);
+	    holder.addListener(serviceConn);
+	    isServiceBound = true;
 	} else {
 	    // already bound
 	}
@@ -120,9 +70,57 @@ public class RegisterActivity extends FragmentActivity implements IRegisterActiv
 
 	setResult(RESULT_CANCELED);
 
+	authPipeline = new AuthPipeline(this, getResources().getInteger(R.integer.auth_timeout));
+
 	showRegisterDialog();
     }
 
+    @Override
+    protected void onDestroy() {
+	authPipeline.cancel();
+	super.onDestroy();
+    }
+
+    @Override
+    public void onAuthProgress(AuthPipeline.Progress progress) {
+	Log.v(TAG, "Registration progress: " + progress);
+    }
+
+    @Override
+    public void onAuthResult(AuthPipeline.Result result) {
+
+	if (result == AuthPipeline.Result.CANCELLED) {
+	    // the wait dialog is already gone, or the activity is being destroyed
+	    return;
+	}
+
+	if (null != waitDialog) {
+	    try {
+		waitDialog.dismiss();
+	    } catch (final IllegalArgumentException e) {
+		// do nothing
+	    }
+	}
+
+	switch (result) {
+	case OK:
+	    showToast(getString(R.string.toast_reg_ok), Toast.LENGTH_LONG);
+	    onRegisterSuccess();
+	    break;
+	case REJECTED:
+	    showToast(getString(R.string.toast_reg_conflict), Toast.LENGTH_LONG);
+	    showRegisterDialog();
+	    break;
+	case TIMEOUT:
+	    showToast(getString(R.string.toast_reg_timeout), Toast.LENGTH_LONG);
+	    showRegisterDialog();
+	    break;
+	default:
+	    showToast(getString(R.string.toast_reg_fail), Toast.LENGTH_LONG);
+	    showRegisterDialog();
+	}
+    }
+
     private void onNoPassMatch() {
 	showToast(getString(R.string.toast_reg_pass), Toast.LENGTH_LONG);
 	showRegisterDialog();
@@ -164,6 +162,12 @@ public class RegisterActivity extends FragmentActivity implements IRegisterActiv
 	super.onStop();
     }
 
+    @Override
+    public void onWaitCancel() {
+	authPipeline.cancel();
+	showRegisterDialog();
+    }
+
     @Override
     public void onSubmit(String username, String password, String password2, String email,
 	    String address, String zipCode, String country, String name, String surname,
@@ -171,8 +175,8 @@ public class RegisterActivity extends FragmentActivity implements IRegisterActiv
 	if ((username != null) && (username.length() > 0) && (password != null)
 		&& (password.length() > 0) && (email != null) && (email.length() > 0)) {
 	    if (password.equals(password2)) {
-		submit(username, password, email, address, zipCode, country, name, surname, phone);
 		showWaitDialog();
+		submit(username, password, email, address, zipCode, country, name, surname, phone);
 
 	    } else {
 		onNoPassMatch();
@@ -210,13 +214,8 @@ public class RegisterActivity extends FragmentActivity implements IRegisterActiv
 
     private void submit(String username, String password, String email, String address,
 	    String zipCode, String country, String name, String surname, String phone) {
-	try {
-	    service.register(username, password, email, address, zipCode, country, name, surname,
-		    phone, callback);
-	} catch (RemoteException e) {
-	    Log.e(TAG, "Failed to call register: '" + e + "'");
-	    finish();
-	}
+	authPipeline.register(service, username, password, email, address, zipCode, country, name,
+		surname, phone);
     }
 
     /**
@@ -224,9 +223,11 @@ public class RegisterActivity extends FragmentActivity implements IRegisterActiv
      */
     private void unbindFromSenseService() {
 
-	if ((true == isServiceBound) && (null != serviceConn)) {
+	if (true == isServiceBound) {
 	    // Log.v(TAG, "Unbind from Sense Platform service");
-	    unbindService(serviceConn);
+	    SenseServiceHolder holder = SenseServiceHolder.getInstance(this);
+	    holder.removeListener(serviceConn);
+	    holder.release();
 	} else {
 	    // already unbound
 	}
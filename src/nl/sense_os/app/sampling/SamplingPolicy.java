@@ -0,0 +1,143 @@
+package nl.sense_os.app.sampling;
+
+/**
+ * Defines what the global sample rate preference (-2 real-time, -1 often, 0 normal, 1 rarely) means
+ * for each sensor module. The toggle messages, the settings summary and the widget look the rate up
+ * here instead of interpreting the preference themselves.<br/>
+ * <br/>
+ * The intervals describe the preference as the Sense service applies it. Any adaptation to battery
+ * or motion state belongs in the service, otherwise the app would report rates that the service
+ * does not use.
+ */
+public class SamplingPolicy {
+
+    /**
+     * Sensor modules with their sample interval in ms for each rate, from real-time to rarely. An
+     * interval of 0 means that the module samples continuously.
+     */
+    public enum Module {
+        AMBIENCE(0, 10000, 60000, 900000),
+        DEVICE_PROX(1000, 60000, 300000, 900000),
+        EXTERNAL(1000, 5000, 60000, 900000),
+        LOCATION(1000, 30000, 300000, 900000),
+        MOTION(1000, 5000, 60000, 900000);
+
+        private final long[] intervals;
+
+        private Module(long... intervals) {
+            this.intervals = intervals;
+        }
+    }
+
+    /** Fastest rate: real-time */
+    public static final int RATE_REAL_TIME = -2;
+    /** Rate for sampling often */
+    public static final int RATE_OFTEN = -1;
+    /** Normal rate */
+    public static final int RATE_NORMAL = 0;
+    /** Slowest rate: rarely */
+    public static final int RATE_RARELY = 1;
+
+    /** Names of the rates, from real-time to rarely */
+    private static final String[] NAMES = { "Real-time", "Often", "Normal", "Rarely" };
+
+    /**
+     * @param interval
+     *            Interval in ms
+     * @return The interval in words, e.g. "1 second", "5 seconds" or "1 minute"
+     */
+    private static String amount(long interval) {
+        long seconds = Math.max(1, interval / 1000);
+        if (seconds < 60) {
+            return seconds == 1 ? "1 second" : seconds + " seconds";
+        }
+        long minutes = seconds / 60;
+        return minutes == 1 ? "1 minute" : minutes + " minutes";
+    }
+
+    /**
+     * @param rate
+     *            Sample rate preference value
+     * @return Rate clamped to the valid range
+     */
+    private static int clamp(int rate) {
+        return Math.max(RATE_REAL_TIME, Math.min(RATE_RARELY, rate));
+    }
+
+    /**
+     * Describes a rate for the settings screen, from the fastest and slowest interval of the
+     * modules, e.g. "Normal: sample every 1-5 minutes".
+     *
+     * @param rate
+     *            Sample rate preference value
+     * @return Summary of the rate
+     */
+    public static String describe(int rate) {
+        long min = Long.MAX_VALUE, max = 0;
+        for (Module module : Module.values()) {
+            long interval = getInterval(module, rate);
+            min = Math.min(min, interval);
+            max = Math.max(max, interval);
+        }
+
+        String range;
+        if (min == 0) {
+            range = "as quickly as possible";
+        } else if (min == max) {
+            range = "every " + amount(max);
+        } else {
+            String from = amount(min);
+            String to = amount(max);
+            String fromUnit = from.substring(from.indexOf(' ') + 1);
+            String toUnit = to.substring(to.indexOf(' ') + 1);
+            if (fromUnit.startsWith(toUnit) || toUnit.startsWith(fromUnit)) {
+                // same unit, e.g. "1-5 minutes"
+                range = "every " + from.substring(0, from.indexOf(' ')) + "-" + to;
+            } else {
+                range = "every " + from + " to " + to;
+            }
+        }
+        return NAMES[clamp(rate) - RATE_REAL_TIME] + ": sample " + range;
+    }
+
+    /**
+     * Formats an interval for informational messages, e.g. "second", "5 seconds" or "minute".
+     *
+     * @param interval
+     *            Interval in ms
+     * @return The interval in words, to be used after "every"
+     */
+    public static String format(long interval) {
+        String amount = amount(interval);
+        return amount.startsWith("1 ") ? amount.substring(2) : amount;
+    }
+
+    /**
+     * @param module
+     *            Sensor module
+     * @param rate
+     *            Sample rate preference value
+     * @return Sample interval of the module in ms, or 0 if it samples continuously
+     */
+    public static long getInterval(Module module, int rate) {
+        return module.intervals[clamp(rate) - RATE_REAL_TIME];
+    }
+
+    /**
+     * @param pref
+     *            Sample rate preference value as stored by the Sense service
+     * @return The rate, or {@link #RATE_NORMAL} if the value is not valid
+     */
+    public static int parseRate(String pref) {
+        try {
+            int rate = Integer.parseInt(pref);
+            return rate == clamp(rate) ? rate : RATE_NORMAL;
+        } catch (NumberFormatException e) {
+            return RATE_NORMAL;
+        }
+    }
+
+    private SamplingPolicy() {
+        // class should not be instantiated
+    }
+}